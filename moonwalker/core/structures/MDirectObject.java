@@ -18,6 +18,7 @@
 package moonwalker.core.structures;
 
 import java.awt.Point;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -119,6 +120,21 @@ public class MDirectObject implements MoonwalkerObject, Cloneable
 			return -1;
 		return data.length;
 	}
+	@Override
+	public byte getDataByte(int index)
+	{
+		return data[index];
+	}
+	@Override
+	public void copyDataTo(byte[] dest, int offset)
+	{
+		System.arraycopy(data, 0, dest, offset, data.length);
+	}
+	@Override
+	public ByteBuffer getDataBuffer()
+	{
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
 	public Container getContainer()
 	{
 		return container;
@@ -225,6 +241,20 @@ public class MDirectObject implements MoonwalkerObject, Cloneable
 			return false;
 		return true;
 	}
+	//Consistent with equalsIgnoreContainer()
+	public int hashCodeIgnoreContainer()
+	{
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + allocationAddress;
+		result = prime * result + Arrays.hashCode(data);
+		result = prime * result + (offsetX % REGION_WIDTH);
+		result = prime * result + (offsetY % REGION_HEIGHT);
+		result = prime * result + (regionX + (offsetX / REGION_WIDTH));
+		result = prime * result + (regionY + (offsetY / REGION_HEIGHT));
+		result = prime * result + type;
+		return result;
+	}
 	
 	@Override
 	public boolean equals(Object obj)
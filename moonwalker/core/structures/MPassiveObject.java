@@ -1,6 +1,7 @@
 package moonwalker.core.structures;
 
 import java.awt.Point;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class MPassiveObject implements MoonwalkerObject
@@ -42,6 +43,21 @@ public class MPassiveObject implements MoonwalkerObject
 			return -1;
 		return data.length;
 	}
+	@Override
+	public byte getDataByte(int index)
+	{
+		return data[index];
+	}
+	@Override
+	public void copyDataTo(byte[] dest, int offset)
+	{
+		System.arraycopy(data, 0, dest, offset, data.length);
+	}
+	@Override
+	public ByteBuffer getDataBuffer()
+	{
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
 	
 	@Override
 	public boolean equals(Object obj)
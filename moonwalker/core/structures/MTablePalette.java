@@ -0,0 +1,73 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.structures;
+
+import java.util.Arrays;
+
+public class MTablePalette implements MoonwalkerPalette
+{
+	public static final int ROW_COUNT = 4;
+	public static final int ROW_LENGTH = 16;
+	
+	private static final int[] COLOR_RAMP = {0, 0x34, 0x57, 0x74, 0x90, 0xAC, 0xCE, 0xFF};
+	
+	private int[] opaqueTable;
+	private int[] transparentTable;
+	
+	//Decodes 4 rows of 16 Genesis CRAM words (0000BBB0GGG0RRR0)
+	public MTablePalette(byte[] cram)
+	{
+		if (cram.length < 2 * ROW_COUNT * ROW_LENGTH)
+			throw new IllegalArgumentException("Palette data too short: " + cram.length);
+		
+		opaqueTable = new int[ROW_COUNT * ROW_LENGTH];
+		transparentTable = new int[ROW_COUNT * ROW_LENGTH];
+		for (int i = 0; i < opaqueTable.length; i++)
+		{
+			byte b1 = cram[2 * i];
+			byte b2 = cram[(2 * i) + 1];
+			
+			int b = COLOR_RAMP[(b1 & 0xE) >> 1];
+			int g = COLOR_RAMP[(b2 & 0xE0) >> 5];
+			int r = COLOR_RAMP[(b2 & 0xE) >> 1];
+			
+			int col = (r << 16) | (g << 8) | b;
+			opaqueTable[i] = col;
+			transparentTable[i] = col | (((i % ROW_LENGTH) == 0)?0:0xFF000000);
+		}
+	}
+	
+	@Override
+	public int getColor(int palRow, int palCol, boolean transparent,
+			boolean priority, boolean f1, boolean f2, boolean f3)
+	{
+		return (transparent?transparentTable:opaqueTable)[(palRow * ROW_LENGTH) + palCol];
+	}
+	@Override
+	public void getColorRow(int palRow, boolean transparent, boolean priority,
+			boolean f1, boolean f2, boolean f3, int[] dest, int offset)
+	{
+		System.arraycopy(transparent?transparentTable:opaqueTable, palRow * ROW_LENGTH,
+				dest, offset, ROW_LENGTH);
+	}
+	public int[] getColorTable(boolean transparent)
+	{
+		int[] table = transparent?transparentTable:opaqueTable;
+		return Arrays.copyOf(table, table.length);
+	}
+}
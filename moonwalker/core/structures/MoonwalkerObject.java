@@ -17,9 +17,28 @@
 
 package moonwalker.core.structures;
 
+import java.nio.ByteBuffer;
+
 public interface MoonwalkerObject
 {
 	public short getType();
 	public byte[] getData();
 	public int getDataLength();
+	
+	//Alternatives to getData() that implementations serve from their own storage without allocating
+	public default byte getDataByte(int index)
+	{
+		return getData()[index];
+	}
+	public default void copyDataTo(byte[] dest, int offset)
+	{
+		byte[] data = getData();
+		System.arraycopy(data, 0, dest, offset, data.length);
+	}
+	//Read-only view of the current data. Implementations wrap their own storage instead of copying
+	//it, but every call still allocates the view.
+	public default ByteBuffer getDataBuffer()
+	{
+		return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+	}
 }
@@ -21,4 +21,12 @@ public interface MoonwalkerPalette
 {
 	public int getColor(int palRow, int palCol, boolean transparent, 
 			boolean priority, boolean f1, boolean f2, boolean f3);
+	
+	//Writes the 16 colors of a palette row; implementations backed by a table should override this.
+	public default void getColorRow(int palRow, boolean transparent, boolean priority,
+			boolean f1, boolean f2, boolean f3, int[] dest, int offset)
+	{
+		for (int c = 0; c < 16; c++)
+			dest[offset + c] = getColor(palRow, c, transparent, priority, f1, f2, f3);
+	}
 }
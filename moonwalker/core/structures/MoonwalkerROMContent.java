@@ -0,0 +1,60 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.structures;
+
+//Everything loaded from a ROM when it is opened, indexed by stage
+public class MoonwalkerROMContent
+{
+	private MoonwalkerStageArea[] stageAreas;
+	private MoonwalkerPalette[] palettes;
+	private MDirectObject[][] mainObjectArray;
+	private MDirectObject[][] caveObjectArray;
+	
+	public MoonwalkerROMContent(MoonwalkerStageArea[] stageAreas, MoonwalkerPalette[] palettes,
+			MDirectObject[][] mainObjectArray, MDirectObject[][] caveObjectArray)
+	{
+		if (stageAreas.length != palettes.length)
+			throw new IllegalArgumentException("Stage area and palette counts differ: "
+					+ stageAreas.length + ", " + palettes.length);
+		this.stageAreas = stageAreas;
+		this.palettes = palettes;
+		this.mainObjectArray = mainObjectArray;
+		this.caveObjectArray = caveObjectArray;
+	}
+	
+	public int getStageCount()
+	{
+		return stageAreas.length;
+	}
+	public MoonwalkerStageArea getStageArea(int stageIndex)
+	{
+		return stageAreas[stageIndex];
+	}
+	public MoonwalkerPalette getPalette(int stageIndex)
+	{
+		return palettes[stageIndex];
+	}
+	public MDirectObject[][] getMainObjectArray()
+	{
+		return mainObjectArray;
+	}
+	public MDirectObject[][] getCaveObjectArray()
+	{
+		return caveObjectArray;
+	}
+}
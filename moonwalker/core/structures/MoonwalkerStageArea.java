@@ -18,19 +18,39 @@
 package moonwalker.core.structures;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
 import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public class MoonwalkerStageArea
 {
 	private byte[] layerAmap;
 	private byte[] layerBmap;
 	private short[][] tilemap;
-	private byte[][] tileset;
+	private MoonwalkerTileset tileset;
 	private int areaWidth;
 	
+	//Rendered 16x16 metatiles, one cache per transparency mode, valid for a single palette
+	private MetatileCache[] metatileCaches = new MetatileCache[2];
+	//Palette indices of rendered metatiles, filled on demand
+	private byte[][] indexMetatiles;
+	
 	public MoonwalkerStageArea(byte[] tileset, byte[] tilemap,
 			byte[] layerA, byte[] layerB, int areaWidth)
 	{
+		this(new MoonwalkerTileset(tileset), tilemap, layerA, layerB, areaWidth);
+	}
+	public MoonwalkerStageArea(MoonwalkerTileset tileset, byte[] tilemap,
+			byte[] layerA, byte[] layerB, int areaWidth)
+	{
+		Objects.requireNonNull(tileset);
+
 		if (layerB != null && layerB.length == 0)
 			layerB = null;
 		
@@ -45,11 +65,7 @@ public class MoonwalkerStageArea
 			this.tilemap[i / 8][2] = packShort(tilemap[i + 4], tilemap[i + 5]);
 			this.tilemap[i / 8][3] = packShort(tilemap[i + 6], tilemap[i + 7]);
 		}
-		this.tileset = new byte[tileset.length / 32][32];
-		
-		for (int i = 0; i < tileset.length; i += 32)
-			for (int i0 = 0; i0 < 32; i0++)
-				this.tileset[i / 32][i0] = tileset[i + i0];
+		this.tileset = tileset;
 		
 		this.areaWidth = areaWidth;
 		if ((layerBmap != null) && (layerAmap.length != layerBmap.length))
@@ -69,85 +85,419 @@ public class MoonwalkerStageArea
 	{
 		return createLayer(layerBmap, pal, transparent);
 	}
+	//Renders horizontal bands of the layer as separate tasks, e.g. on ForkJoinPool.commonPool().
+	public BufferedImage createLayerA(MoonwalkerPalette pal, boolean transparent, Executor executor)
+	{
+		Objects.requireNonNull(executor);
+		return createLayer(layerAmap, pal, transparent, executor);
+	}
+	public BufferedImage createLayerB(MoonwalkerPalette pal, boolean transparent, Executor executor)
+	{
+		Objects.requireNonNull(executor);
+		return createLayer(layerBmap, pal, transparent, executor);
+	}
+	
+	//Renders into a caller-supplied framebuffer using the TYPE_INT_RGB/TYPE_INT_ARGB pixel layout.
+	public void renderLayerA(int[] dest, int offset, int scanline,
+			MoonwalkerPalette pal, boolean transparent)
+	{
+		renderLayer(layerAmap, dest, offset, scanline, pal, transparent, null);
+	}
+	public void renderLayerB(int[] dest, int offset, int scanline,
+			MoonwalkerPalette pal, boolean transparent)
+	{
+		if (layerBmap == null)
+			throw new IllegalStateException("Stage area has no layer B");
+		renderLayer(layerBmap, dest, offset, scanline, pal, transparent, null);
+	}
+	public void renderLayerA(int[] dest, int offset, int scanline,
+			MoonwalkerPalette pal, boolean transparent, Executor executor)
+	{
+		Objects.requireNonNull(executor);
+		renderLayer(layerAmap, dest, offset, scanline, pal, transparent, executor);
+	}
+	public void renderLayerB(int[] dest, int offset, int scanline,
+			MoonwalkerPalette pal, boolean transparent, Executor executor)
+	{
+		Objects.requireNonNull(executor);
+		if (layerBmap == null)
+			throw new IllegalStateException("Stage area has no layer B");
+		renderLayer(layerBmap, dest, offset, scanline, pal, transparent, executor);
+	}
+	
+	//Indexed output keeps 4-bit palette indices; a palette swap only needs a new color model.
+	//Colors are taken from palette row 0 without tile flags, as the RGB renderer does for the loaded palettes.
+	public BufferedImage createIndexedLayerA(MoonwalkerPalette pal, boolean transparent)
+	{
+		return createIndexedLayer(layerAmap, pal, transparent);
+	}
+	public BufferedImage createIndexedLayerB(MoonwalkerPalette pal, boolean transparent)
+	{
+		return createIndexedLayer(layerBmap, pal, transparent);
+	}
+	public void renderLayerAIndices(byte[] dest, int offset, int scanline)
+	{
+		renderLayerIndices(layerAmap, dest, offset, scanline);
+	}
+	public void renderLayerBIndices(byte[] dest, int offset, int scanline)
+	{
+		if (layerBmap == null)
+			throw new IllegalStateException("Stage area has no layer B");
+		renderLayerIndices(layerBmap, dest, offset, scanline);
+	}
+	public static IndexColorModel createColorModel(MoonwalkerPalette pal, boolean transparent)
+	{
+		int[] colors = new int[16];
+		pal.getColorRow(0, transparent, false, false, false, false, colors, 0);
+		return new IndexColorModel(4, colors.length, colors, 0, transparent, -1, DataBuffer.TYPE_BYTE);
+	}
+	
+	public MoonwalkerTileset getTileset()
+	{
+		return tileset;
+	}
+	public boolean hasLayerB()
+	{
+		return layerBmap != null;
+	}
+	public int getWidth()
+	{
+		return areaWidth * 8;
+	}
+	public int getHeight()
+	{
+		return (layerAmap.length / areaWidth) * 32;
+	}
+	
+	//Renders a pixel rectangle of the stage into dest, touching only the metatiles it intersects.
+	//With Layer.BOTH, layer A is drawn over layer B, skipping its pixels of palette index 0.
+	public void renderArea(int x, int y, int width, int height, int[] dest, int offset, int scanline,
+			MoonwalkerPalette pal, boolean transparent, Layer layer)
+	{
+		Objects.requireNonNull(layer);
+		if (x < 0 || y < 0 || width < 0 || height < 0
+				|| x + width > getWidth() || y + height > getHeight())
+			throw new IllegalArgumentException("Area outside of the stage: (" + x + ", " + y
+					+ ", " + width + ", " + height + ")");
+		if (scanline < width)
+			throw new IllegalArgumentException("Scanline shorter than area width: "
+					+ scanline + " < " + width);
+		if (width == 0 || height == 0)
+			return;
+		if (offset < 0 || offset + ((height - 1) * scanline) + width > dest.length)
+			throw new IllegalArgumentException("Destination buffer too small");
+		if ((layer != Layer.A) && (layerBmap == null))
+			throw new IllegalStateException("Stage area has no layer B");
+		
+		int firstCol = x / 16;
+		int lastCol = ((x + width - 1) / 16) + 1;
+		int firstRow = y / 16;
+		int lastRow = ((y + height - 1) / 16) + 1;
+		
+		MetatileCache cache = getMetatileCache(pal, transparent);
+		if (layer != Layer.A)
+		{
+			cache.prepare(layerBmap, firstCol, lastCol, firstRow, lastRow);
+			renderArea(layerBmap, cache, null, x, y, width, height, dest, offset, scanline);
+		}
+		if (layer != Layer.B)
+		{
+			cache.prepare(layerAmap, firstCol, lastCol, firstRow, lastRow);
+			byte[][] mask = null;
+			if (layer == Layer.BOTH)
+				mask = getIndexMetatiles(layerAmap, firstCol, lastCol, firstRow, lastRow);
+			renderArea(layerAmap, cache, mask, x, y, width, height, dest, offset, scanline);
+		}
+	}
+	
 	private BufferedImage createLayer(byte[] layer, MoonwalkerPalette pal, boolean transparent)
+	{
+		return createLayer(layer, pal, transparent, null);
+	}
+	private BufferedImage createLayer(byte[] layer, MoonwalkerPalette pal, boolean transparent,
+			Executor executor)
 	{
 		if (layer == null)
 			return null;
 		
-		BufferedImage ret = new BufferedImage(areaWidth * 8, (layer.length / areaWidth) * 32,
+		BufferedImage ret = new BufferedImage(getWidth(), getHeight(),
 				transparent?BufferedImage.TYPE_INT_ARGB:BufferedImage.TYPE_INT_RGB);
-		int width = areaWidth / 2;
+		int[] pixels = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+		renderLayer(layer, pixels, 0, ret.getWidth(), pal, transparent, executor);
+		return ret;
+	}
+	private BufferedImage createIndexedLayer(byte[] layer, MoonwalkerPalette pal, boolean transparent)
+	{
+		if (layer == null)
+			return null;
+		
+		BufferedImage ret = new BufferedImage(getWidth(), getHeight(),
+				BufferedImage.TYPE_BYTE_INDEXED, createColorModel(pal, transparent));
+		byte[] pixels = ((DataBufferByte) ret.getRaster().getDataBuffer()).getData();
+		renderLayerIndices(layer, pixels, 0, ret.getWidth());
+		return ret;
+	}
+	private void renderLayerIndices(byte[] layer, byte[] dest, int offset, int scanline)
+	{
+		if (scanline < getWidth())
+			throw new IllegalArgumentException("Scanline shorter than layer width: "
+					+ scanline + " < " + getWidth());
+		if (offset < 0 || offset + ((getHeight() - 1) * scanline) + getWidth() > dest.length)
+			throw new IllegalArgumentException("Destination buffer too small");
+		
+		int cols = areaWidth / 2;
+		int rows = layer.length / cols;
+		byte[][] indices = getIndexMetatiles(layer, 0, cols, 0, rows);
 		for (int i = 0; i < layer.length; i++)
 		{
-			int baseX = (i % width) * 16;
-			int baseY = (i / width) * 16;
-			
-			short[] tileIndArr = tilemap[0xFF & layer[i]];
-			for (int i0 = 0; i0 < 4; i0++)
+			byte[] metatile = indices[0xFF & layer[i]];
+			int destAddr = offset + ((i / cols) * 16 * scanline) + ((i % cols) * 16);
+			for (int row = 0; row < 16; row++)
 			{
-				int qX = 8 * (i0 % 2);
-				int qY = 8 * (i0 / 2);
-				int tileIndex = 0xFFFF & tileIndArr[i0];
-				
-				int tileIndexMasked = tileIndex & 0x3FF;
-
-				boolean prio = (tileIndex & 0x8000) != 0;
-				
-				boolean f1 = (tileIndex & 0x4000) != 0;
-				boolean f2 = (tileIndex & 0x2000) != 0;
-				boolean f3 = (tileIndex & 0x400) != 0;
+				System.arraycopy(metatile, row * 16, dest, destAddr, 16);
+				destAddr += scanline;
+			}
+		}
+	}
+	private void renderLayer(byte[] layer, int[] dest, int offset, int scanline,
+			MoonwalkerPalette pal, boolean transparent, Executor executor)
+	{
+		if (scanline < getWidth())
+			throw new IllegalArgumentException("Scanline shorter than layer width: "
+					+ scanline + " < " + getWidth());
+		if (offset < 0 || offset + ((getHeight() - 1) * scanline) + getWidth() > dest.length)
+			throw new IllegalArgumentException("Destination buffer too small");
+		
+		int rows = layer.length / (areaWidth / 2);
+		MetatileCache cache = getMetatileCache(pal, transparent);
+		cache.prepare(layer, 0, areaWidth / 2, 0, rows);
+		
+		if (executor == null)
+		{
+			renderArea(layer, cache, null, 0, 0, getWidth(), getHeight(), dest, offset, scanline);
+			return;
+		}
+		
+		//Bands write disjoint rows of dest, so the result does not depend on scheduling
+		int bandCount = Math.min(rows, Runtime.getRuntime().availableProcessors() * 4);
+		CompletableFuture<?>[] bands = new CompletableFuture<?>[bandCount];
+		for (int i = 0; i < bandCount; i++)
+		{
+			int firstRow = (rows * i) / bandCount;
+			int lastRow = (rows * (i + 1)) / bandCount;
+			bands[i] = CompletableFuture.runAsync(() ->
+					renderArea(layer, cache, null, 0, 16 * firstRow, getWidth(), 16 * (lastRow - firstRow),
+							dest, offset + (16 * firstRow * scanline), scanline), executor);
+		}
+		try
+		{
+			CompletableFuture.allOf(bands).join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+	//Copies the given pixel area of a layer; with an index mask, pixels of palette index 0 are skipped
+	private void renderArea(byte[] layer, MetatileCache cache, byte[][] mask,
+			int x, int y, int width, int height, int[] dest, int offset, int scanline)
+	{
+		int cols = areaWidth / 2;
+		int firstCol = x / 16;
+		int lastCol = ((x + width - 1) / 16) + 1;
+		int firstRow = y / 16;
+		int lastRow = ((y + height - 1) / 16) + 1;
+		for (int row = firstRow; row < lastRow; row++)
+		{
+			int top = Math.max(y, 16 * row);
+			int bottom = Math.min(y + height, 16 * (row + 1));
+			for (int col = firstCol; col < lastCol; col++)
+			{
+				int left = Math.max(x, 16 * col);
+				int right = Math.min(x + width, 16 * (col + 1));
 				
-				boolean vflip = (tileIndex & 0x1000) != 0;
-				boolean hflip = (tileIndex & 0x800) != 0;
-				byte[] quadrant = applyMirroring(tileset[tileIndexMasked], vflip, hflip);
-				for (int i1 = 0; i1 < quadrant.length; i1++)
+				int entry = 0xFF & layer[(row * cols) + col];
+				int[] metatile = cache.get(entry);
+				for (int py = top; py < bottom; py++)
 				{
-					int ind = i1 * 2;
-					int x = baseX + qX + (ind % 8);
-					int y = baseY + qY + (ind / 8);
-					
-					ret.setRGB(x, y, pal.getColor(0, (0xF0 & quadrant[i1]) >> 4,
-							transparent, prio, f1, f2, f3));
-					ret.setRGB(x + 1, y, pal.getColor(0, 0xF & quadrant[i1],
-							transparent, prio, f1, f2, f3));
+					int srcAddr = (16 * (py - (16 * row))) + (left - (16 * col));
+					int destAddr = offset + ((py - y) * scanline) + (left - x);
+					if (mask == null)
+						System.arraycopy(metatile, srcAddr, dest, destAddr, right - left);
+					else
+					{
+						byte[] indices = mask[entry];
+						for (int px = left; px < right; px++, srcAddr++, destAddr++)
+						{
+							if (indices[srcAddr] != 0)
+								dest[destAddr] = metatile[srcAddr];
+						}
+					}
 				}
 			}
 		}
+	}
+	private void renderMetatile(int entry, int[] dest, int offset, int scanline,
+			MoonwalkerPalette pal, boolean transparent)
+	{
+		int colorMask = transparent?0xFFFFFFFF:0xFFFFFF;
+		int[] colors = new int[16];
+		
+		short[] tileIndArr = tilemap[entry];
+		for (int i0 = 0; i0 < 4; i0++)
+		{
+			int qX = 8 * (i0 % 2);
+			int qY = 8 * (i0 / 2);
+			int tileIndex = 0xFFFF & tileIndArr[i0];
+			
+			int tileIndexMasked = tileIndex & 0x3FF;
+
+			boolean prio = (tileIndex & 0x8000) != 0;
+			
+			boolean f1 = (tileIndex & 0x4000) != 0;
+			boolean f2 = (tileIndex & 0x2000) != 0;
+			boolean f3 = (tileIndex & 0x400) != 0;
+			
+			byte[] pixels = tileset.getPixels((tileIndex >> 11)
+					& (MoonwalkerTileset.FLIP_H | MoonwalkerTileset.FLIP_V));
+			int srcAddr = tileIndexMasked * 64;
+			
+			pal.getColorRow(0, transparent, prio, f1, f2, f3, colors, 0);
+			for (int c = 0; c < colors.length; c++)
+				colors[c] &= colorMask;
+			
+			int rowAddr = offset + (qY * scanline) + qX;
+			for (int row = 0; row < 8; row++)
+			{
+				for (int col = 0; col < 8; col++)
+					dest[rowAddr + col] = colors[pixels[srcAddr++]];
+				rowAddr += scanline;
+			}
+		}
+	}
+	
+	private synchronized MetatileCache getMetatileCache(MoonwalkerPalette pal, boolean transparent)
+	{
+		int mode = transparent?1:0;
+		MetatileCache cache = metatileCaches[mode];
+		if (cache == null || cache.pal != pal)
+		{
+			cache = new MetatileCache(pal, transparent);
+			metatileCaches[mode] = cache;
+		}
+		return cache;
+	}
+	private synchronized byte[][] getIndexMetatiles(byte[] layer,
+			int firstCol, int lastCol, int firstRow, int lastRow)
+	{
+		if (indexMetatiles == null)
+			indexMetatiles = new byte[tilemap.length][];
+		int cols = areaWidth / 2;
+		for (int row = firstRow; row < lastRow; row++)
+		{
+			for (int col = firstCol; col < lastCol; col++)
+			{
+				int entry = 0xFF & layer[(row * cols) + col];
+				if (indexMetatiles[entry] == null)
+					indexMetatiles[entry] = renderIndexMetatile(entry);
+			}
+		}
+		return indexMetatiles;
+	}
+	private byte[] renderIndexMetatile(int entry)
+	{
+		byte[] ret = new byte[16 * 16];
+		short[] tileIndArr = tilemap[entry];
+		for (int i0 = 0; i0 < 4; i0++)
+		{
+			int tileIndex = 0xFFFF & tileIndArr[i0];
+			byte[] pixels = tileset.getPixels((tileIndex >> 11)
+					& (MoonwalkerTileset.FLIP_H | MoonwalkerTileset.FLIP_V));
+			int srcAddr = (tileIndex & 0x3FF) * 64;
+			int destAddr = (8 * 16 * (i0 / 2)) + (8 * (i0 % 2));
+			for (int row = 0; row < 8; row++)
+			{
+				System.arraycopy(pixels, srcAddr, ret, destAddr, 8);
+				srcAddr += 8;
+				destAddr += 16;
+			}
+		}
 		return ret;
 	}
+	//Needed only when a palette changes its colors in place; a different palette instance is detected automatically.
+	public synchronized void invalidateRenderCache()
+	{
+		Arrays.fill(metatileCaches, null);
+	}
 	
 	private static short packShort(byte h, byte l)
 	{
 		return (short) (((h & 0xFF) << 8) | (l & 0xFF));
 	}
-	private static byte[] applyMirroring(byte[] src, boolean vflip, boolean hflip)
+	private class MetatileCache
 	{
-		if (vflip)
+		private final MoonwalkerPalette pal;
+		private final boolean transparent;
+		private final int[][] metatiles;
+		
+		public MetatileCache(MoonwalkerPalette pal, boolean transparent)
 		{
-			byte[] ret = new byte[src.length];
-			if (hflip)
+			this.pal = pal;
+			this.transparent = transparent;
+			metatiles = new int[tilemap.length][];
+		}
+		
+		//Renders every metatile used by the given cells, so that get() never writes to the cache
+		public synchronized void prepare(byte[] layer, int firstCol, int lastCol, int firstRow, int lastRow)
+		{
+			int cols = areaWidth / 2;
+			for (int row = firstRow; row < lastRow; row++)
+			{
+				for (int col = firstCol; col < lastCol; col++)
+				{
+					int entry = 0xFF & layer[(row * cols) + col];
+					if (metatiles[entry] == null)
+					{
+						int[] metatile = new int[16 * 16];
+						renderMetatile(entry, metatile, 0, 16, pal, transparent);
+						metatiles[entry] = metatile;
+					}
+				}
+			}
+		}
+		public int[] get(int entry)
+		{
+			return metatiles[entry];
+		}
+	}
+	
+	public enum Layer
+	{
+		A
+		{
+			@Override
+			public String toString()
 			{
-				for (int i = 0; i < ret.length; i++)
-					ret[31 - i] = src[i];
-				for (int i = 0; i < ret.length; i++)
-					ret[i] = (byte) (((0xF0 & ret[i]) >> 4) | ((0xF & ret[i]) << 4));
+				return "Layer A";
 			}
-			else
+		},
+		B
+		{
+			@Override
+			public String toString()
 			{
-				for (int i = 0; i < ret.length; i++)
-					ret[(i % 4) + (4 * (7 - (i / 4)))] = src[i];
+				return "Layer B";
 			}
-			return ret;
-		}
-		else if (hflip)
+		},
+		BOTH
 		{
-			byte[] ret = new byte[src.length];
-			for (int i = 0; i < ret.length; i++)
-				ret[(3 - (i % 4)) + (4 * (i / 4))] = src[i];
-			for (int i = 0; i < ret.length; i++)
-				ret[i] = (byte) (((0xF0 & ret[i]) >> 4) | ((0xF & ret[i]) << 4));
-			return ret;
+			@Override
+			public String toString()
+			{
+				return "Both layers";
+			}
 		}
-		return src;
 	}
 }
@@ -0,0 +1,74 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.structures;
+
+import java.util.Arrays;
+
+//Immutable, so a decoded tileset can be shared by every stage area that uses it
+public class MoonwalkerTileset
+{
+	static final int FLIP_H = 1;
+	static final int FLIP_V = 2;
+	
+	private byte[] patterns;
+	//Palette indices of every tile, one byte per pixel, for each orientation (see FLIP_H, FLIP_V)
+	private byte[][] tilePixels;
+	
+	public MoonwalkerTileset(byte[] patterns)
+	{
+		this.patterns = Arrays.copyOf(patterns, patterns.length);
+		tilePixels = expandTileset(this.patterns);
+	}
+	
+	public int getTileCount()
+	{
+		return patterns.length / 32;
+	}
+	public byte[] getPatterns()
+	{
+		return Arrays.copyOf(patterns, patterns.length);
+	}
+	byte[] getPixels(int orientation)
+	{
+		return tilePixels[orientation];
+	}
+	
+	private static byte[][] expandTileset(byte[] tileset)
+	{
+		int tileCount = tileset.length / 32;
+		byte[][] ret = new byte[4][tileCount * 64];
+		for (int i = 0; i < tileCount; i++)
+		{
+			int base = i * 64;
+			for (int y = 0; y < 8; y++)
+			{
+				for (int x = 0; x < 8; x++)
+				{
+					byte b = tileset[(i * 32) + (y * 4) + (x / 2)];
+					byte px = (byte) (((x % 2) == 0)?((0xF0 & b) >> 4):(0xF & b));
+					
+					ret[0][base + (8 * y) + x] = px;
+					ret[FLIP_H][base + (8 * y) + (7 - x)] = px;
+					ret[FLIP_V][base + (8 * (7 - y)) + x] = px;
+					ret[FLIP_H | FLIP_V][base + (8 * (7 - y)) + (7 - x)] = px;
+				}
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,396 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.structures;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import moonwalker.core.structures.MDirectObject.Container;
+
+//Stores the objects of one stage column-wise: positions, addresses, types and containers in
+//primitive arrays and the data bytes of all objects in a single array. Objects are accessed
+//by index or through a reusable cursor instead of one MDirectObject per entry.
+public class ObjectTable
+{
+	public static final int DATA_LENGTH = 8;
+	
+	private static final Container[] CONTAINERS = Container.values();
+	
+	private int size;
+	private int[] regionX;
+	private int[] regionY;
+	private short[] offsetX;
+	private short[] offsetY;
+	private int[] allocationAddress;
+	private short[] type;
+	private byte[] container;
+	private byte[] data;
+	
+	public ObjectTable()
+	{
+		this(16);
+	}
+	public ObjectTable(int capacity)
+	{
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity < 0");
+		size = 0;
+		regionX = new int[capacity];
+		regionY = new int[capacity];
+		offsetX = new short[capacity];
+		offsetY = new short[capacity];
+		allocationAddress = new int[capacity];
+		type = new short[capacity];
+		container = new byte[capacity];
+		data = new byte[capacity * DATA_LENGTH];
+	}
+	
+	public static ObjectTable fromArray(MDirectObject[] objects)
+	{
+		ObjectTable ret = new ObjectTable(objects.length);
+		for (MDirectObject obj: objects)
+			ret.add(obj);
+		return ret;
+	}
+	public static ObjectTable[] fromArrays(MDirectObject[][] objects)
+	{
+		ObjectTable[] ret = new ObjectTable[objects.length];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = fromArray(objects[i]);
+		return ret;
+	}
+	public MDirectObject[] toArray()
+	{
+		MDirectObject[] ret = new MDirectObject[size];
+		for (int i = 0; i < size; i++)
+			ret[i] = get(i);
+		return ret;
+	}
+	public static MDirectObject[][] toArrays(ObjectTable[] tables)
+	{
+		MDirectObject[][] ret = new MDirectObject[tables.length][];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = tables[i].toArray();
+		return ret;
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public MDirectObject get(int index)
+	{
+		checkIndex(index);
+		return new MDirectObject(regionX[index], offsetX[index], regionY[index], offsetY[index],
+				allocationAddress[index], type[index],
+				Arrays.copyOfRange(data, index * DATA_LENGTH, (index + 1) * DATA_LENGTH),
+				CONTAINERS[container[index]]);
+	}
+	public void add(MDirectObject obj)
+	{
+		ensureCapacity(size + 1);
+		size++;
+		set(size - 1, obj);
+	}
+	public void add(int regionX, int relativeX, int regionY, int relativeY, int addr, short type,
+			byte[] data, Container con)
+	{
+		if (data.length != DATA_LENGTH)
+			throw new IllegalArgumentException("Invalid data length: " + data.length);
+		add(regionX, relativeX, regionY, relativeY, addr, type, data, 0, con);
+	}
+	//Takes the DATA_LENGTH data bytes starting at dataOffset
+	public void add(int regionX, int relativeX, int regionY, int relativeY, int addr, short type,
+			byte[] data, int dataOffset, Container con)
+	{
+		if (regionX < 0)
+			throw new IllegalArgumentException("regionX < 0");
+		if (regionY < 0)
+			throw new IllegalArgumentException("regionY < 0");
+		if (relativeX < 0 || relativeX > MDirectObject.REGION_WIDTH)
+			throw new IllegalArgumentException("relativeX out of region: " + relativeX);
+		if (relativeY < 0 || relativeY > MDirectObject.REGION_HEIGHT)
+			throw new IllegalArgumentException("relativeY out of region: " + relativeY);
+		Objects.checkFromIndexSize(dataOffset, DATA_LENGTH, data.length);
+		Objects.requireNonNull(con);
+		
+		ensureCapacity(size + 1);
+		int index = size++;
+		this.regionX[index] = regionX;
+		this.regionY[index] = regionY;
+		offsetX[index] = (short) relativeX;
+		offsetY[index] = (short) relativeY;
+		allocationAddress[index] = addr;
+		this.type[index] = type;
+		container[index] = (byte) con.ordinal();
+		System.arraycopy(data, dataOffset, this.data, index * DATA_LENGTH, DATA_LENGTH);
+	}
+	public void set(int index, MDirectObject obj)
+	{
+		checkIndex(index);
+		if (obj.getDataLength() != DATA_LENGTH)
+			throw new IllegalArgumentException("Invalid data length: " + obj.getDataLength());
+		regionX[index] = obj.getRegionX();
+		regionY[index] = obj.getRegionY();
+		offsetX[index] = (short) obj.getRelativeX();
+		offsetY[index] = (short) obj.getRelativeY();
+		allocationAddress[index] = obj.getAllocationAddress();
+		type[index] = obj.getType();
+		container[index] = (byte) obj.getContainer().ordinal();
+		obj.copyDataTo(data, index * DATA_LENGTH);
+	}
+	public void remove(int index)
+	{
+		checkIndex(index);
+		int tail = size - index - 1;
+		System.arraycopy(regionX, index + 1, regionX, index, tail);
+		System.arraycopy(regionY, index + 1, regionY, index, tail);
+		System.arraycopy(offsetX, index + 1, offsetX, index, tail);
+		System.arraycopy(offsetY, index + 1, offsetY, index, tail);
+		System.arraycopy(allocationAddress, index + 1, allocationAddress, index, tail);
+		System.arraycopy(type, index + 1, type, index, tail);
+		System.arraycopy(container, index + 1, container, index, tail);
+		System.arraycopy(data, (index + 1) * DATA_LENGTH, data, index * DATA_LENGTH, tail * DATA_LENGTH);
+		size--;
+	}
+	public void clear()
+	{
+		size = 0;
+	}
+	public void trimToSize()
+	{
+		resize(size);
+	}
+	
+	public int getRegionX(int index)
+	{
+		checkIndex(index);
+		return regionX[index];
+	}
+	public int getRegionY(int index)
+	{
+		checkIndex(index);
+		return regionY[index];
+	}
+	public int getRelativeX(int index)
+	{
+		checkIndex(index);
+		return offsetX[index];
+	}
+	public int getRelativeY(int index)
+	{
+		checkIndex(index);
+		return offsetY[index];
+	}
+	public int getAbsoluteX(int index)
+	{
+		checkIndex(index);
+		return MDirectObject.REGION_WIDTH * regionX[index] + offsetX[index];
+	}
+	public int getAbsoluteY(int index)
+	{
+		checkIndex(index);
+		return MDirectObject.REGION_HEIGHT * regionY[index] + offsetY[index];
+	}
+	public int getAllocationAddress(int index)
+	{
+		checkIndex(index);
+		return allocationAddress[index];
+	}
+	public short getType(int index)
+	{
+		checkIndex(index);
+		return type[index];
+	}
+	public Container getContainer(int index)
+	{
+		checkIndex(index);
+		return CONTAINERS[container[index]];
+	}
+	public byte getDataByte(int index, int dataIndex)
+	{
+		checkIndex(index);
+		Objects.checkIndex(dataIndex, DATA_LENGTH);
+		return data[index * DATA_LENGTH + dataIndex];
+	}
+	public void copyDataTo(int index, byte[] dest, int offset)
+	{
+		checkIndex(index);
+		System.arraycopy(data, index * DATA_LENGTH, dest, offset, DATA_LENGTH);
+	}
+	
+	public void setAbsolutePosition(int index, int x, int y)
+	{
+		checkIndex(index);
+		if (x < 0)
+			throw new IllegalArgumentException("x < 0");
+		if (y < 0)
+			throw new IllegalArgumentException("y < 0");
+		regionX[index] = x / MDirectObject.REGION_WIDTH;
+		offsetX[index] = (short) (x % MDirectObject.REGION_WIDTH);
+		regionY[index] = y / MDirectObject.REGION_HEIGHT;
+		offsetY[index] = (short) (y % MDirectObject.REGION_HEIGHT);
+	}
+	public void setAllocationAddress(int index, int allocationAddress)
+	{
+		checkIndex(index);
+		this.allocationAddress[index] = allocationAddress;
+	}
+	public void setType(int index, short type)
+	{
+		checkIndex(index);
+		this.type[index] = type;
+	}
+	public void setContainer(int index, Container c)
+	{
+		checkIndex(index);
+		if (c == null)
+			throw new NullPointerException();
+		container[index] = (byte) c.ordinal();
+	}
+	public void setDataByte(int index, int dataIndex, byte val)
+	{
+		checkIndex(index);
+		Objects.checkIndex(dataIndex, DATA_LENGTH);
+		data[index * DATA_LENGTH + dataIndex] = val;
+	}
+	
+	public Cursor cursor()
+	{
+		return new Cursor();
+	}
+	
+	private void checkIndex(int index)
+	{
+		Objects.checkIndex(index, size);
+	}
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity > type.length)
+			resize(Math.max(capacity, 2 * type.length));
+	}
+	private void resize(int capacity)
+	{
+		regionX = Arrays.copyOf(regionX, capacity);
+		regionY = Arrays.copyOf(regionY, capacity);
+		offsetX = Arrays.copyOf(offsetX, capacity);
+		offsetY = Arrays.copyOf(offsetY, capacity);
+		allocationAddress = Arrays.copyOf(allocationAddress, capacity);
+		type = Arrays.copyOf(type, capacity);
+		container = Arrays.copyOf(container, capacity);
+		data = Arrays.copyOf(data, capacity * DATA_LENGTH);
+	}
+	
+	//A movable view of one row of the table; starts before the first row
+	public class Cursor implements MoonwalkerObject
+	{
+		private int index;
+		
+		private Cursor()
+		{
+			index = -1;
+		}
+		
+		public boolean next()
+		{
+			if (index + 1 >= size)
+				return false;
+			index++;
+			return true;
+		}
+		public void moveTo(int index)
+		{
+			checkIndex(index);
+			this.index = index;
+		}
+		public int getIndex()
+		{
+			return index;
+		}
+		
+		public int getRegionX()
+		{
+			return ObjectTable.this.getRegionX(index);
+		}
+		public int getRegionY()
+		{
+			return ObjectTable.this.getRegionY(index);
+		}
+		public int getRelativeX()
+		{
+			return ObjectTable.this.getRelativeX(index);
+		}
+		public int getRelativeY()
+		{
+			return ObjectTable.this.getRelativeY(index);
+		}
+		public int getAbsoluteX()
+		{
+			return ObjectTable.this.getAbsoluteX(index);
+		}
+		public int getAbsoluteY()
+		{
+			return ObjectTable.this.getAbsoluteY(index);
+		}
+		public int getAllocationAddress()
+		{
+			return ObjectTable.this.getAllocationAddress(index);
+		}
+		@Override
+		public short getType()
+		{
+			return ObjectTable.this.getType(index);
+		}
+		public Container getContainer()
+		{
+			return ObjectTable.this.getContainer(index);
+		}
+		@Override
+		public byte[] getData()
+		{
+			checkIndex(index);
+			return Arrays.copyOfRange(data, index * DATA_LENGTH, (index + 1) * DATA_LENGTH);
+		}
+		@Override
+		public int getDataLength()
+		{
+			return DATA_LENGTH;
+		}
+		@Override
+		public byte getDataByte(int dataIndex)
+		{
+			return ObjectTable.this.getDataByte(index, dataIndex);
+		}
+		@Override
+		public void copyDataTo(byte[] dest, int offset)
+		{
+			ObjectTable.this.copyDataTo(index, dest, offset);
+		}
+		@Override
+		public ByteBuffer getDataBuffer()
+		{
+			checkIndex(index);
+			return ByteBuffer.wrap(data, index * DATA_LENGTH, DATA_LENGTH).slice().asReadOnlyBuffer();
+		}
+		public MDirectObject toObject()
+		{
+			return get(index);
+		}
+	}
+}
@@ -19,28 +19,34 @@ package moonwalker.core.utils;
 
 import java.nio.ByteBuffer;
 
+//All accessors use absolute indices and never touch the buffer's position, limit or mark, so
+//any number of threads may read through one wrapper, or through several wrappers over the same
+//ROM, as long as nothing writes to it concurrently. Subclasses that record accesses are not
+//thread-safe; give each task its own instance over the shared ROM instead.
 class ArrayWrapper
 {
 	private ByteBuffer buf;
+	private Object source;
+	private int identityOffset;
 	
 	public ArrayWrapper(byte[] src)
 	{
 		buf = ByteBuffer.wrap(src);
+		source = src;
+		identityOffset = 0;
+	}
+	//Addresses are relative to the buffer's current position; the buffer itself is not modified
+	public ArrayWrapper(ByteBuffer src)
+	{
+		buf = src.slice();
+		source = identityOf(src);
+		identityOffset = (source == src) ? src.position() : (src.arrayOffset() + src.position());
 	}
 	
 	public byte[] getBlock(int ind, int len)
 	{
 		byte[] ret = new byte[len];
-		buf.mark();
-		try
-		{
-			buf.position(ind);
-			buf.get(ret);
-		}
-		finally
-		{
-			buf.reset();
-		}
+		buf.get(ind, ret);
 		return ret;
 	}
 	public byte getByte(int ind)
@@ -58,16 +64,11 @@ class ArrayWrapper
 	
 	public void put(int ind, byte[] arr)
 	{
-		buf.mark();
-		try
-		{
-			buf.position(ind);
-			buf.put(arr);
-		}
-		finally
-		{
-			buf.reset();
-		}
+		buf.put(ind, arr);
+	}
+	public void put(int ind, byte[] arr, int off, int len)
+	{
+		buf.put(ind, arr, off, len);
 	}
 	public void putByte(int ind, byte val)
 	{
@@ -82,8 +83,37 @@ class ArrayWrapper
 		buf.putInt(ind, val);
 	}
 	
+	//Only available for wrappers whose addresses are indices into a whole byte array
 	public byte[] getSource()
 	{
+		if (!buf.hasArray() || buf.arrayOffset() != 0 || buf.capacity() != buf.array().length)
+			throw new IllegalStateException("ROM is not backed by a byte array");
 		return buf.array();
 	}
+	
+	//The storage behind the wrapped ROM, for caches keyed by ROM identity. Index 0 of the
+	//wrapper is at getIdentityOffset() in it.
+	Object getIdentity()
+	{
+		return source;
+	}
+	int getIdentityOffset()
+	{
+		return identityOffset;
+	}
+	//Heap buffers are identified by their backing array, other buffers by the buffer itself
+	static Object identityOf(Object rom)
+	{
+		if (rom instanceof ByteBuffer && ((ByteBuffer) rom).hasArray())
+			return ((ByteBuffer) rom).array();
+		return rom;
+	}
+	//For bulk readers that bypass the accessors; reads must use absolute positions only
+	ByteBuffer getBuffer()
+	{
+		return buf;
+	}
+	//Records an access made through getBuffer(), as if it went through the accessors
+	void markAccessed(int ind, int len)
+	{}
 }
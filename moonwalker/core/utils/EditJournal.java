@@ -0,0 +1,292 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.utils;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import moonwalker.core.structures.MDirectObject;
+
+//Undo/redo history for edits of a single ROM array. Each entry keeps only the bytes an edit
+//changed, before and after, so undo and redo cost O(changed bytes). Edits are written through
+//an OverlayArrayWrapper, which also tells which bytes changed. Once the history exceeds either
+//limit the oldest entries are dropped.
+//All changes to the ROM have to go through the journal, or undo will restore stale bytes.
+//If stage areas are loaded through a tileset cache, handing it to the journal keeps it
+//consistent: every range an edit, undo or redo writes is invalidated in it.
+public class EditJournal
+{
+	public static final int DEFAULT_MAX_ENTRIES = 100;
+	public static final long DEFAULT_MAX_BYTES = 16L << 20;
+	
+	private final byte[] rom;
+	private final TilesetCache cache;
+	private final ArrayDeque<Entry> undoStack = new ArrayDeque<>();
+	private final ArrayDeque<Entry> redoStack = new ArrayDeque<>();
+	private int maxEntries;
+	private long maxBytes;
+	private long byteSize = 0;
+	
+	public EditJournal(byte[] rom)
+	{
+		this(rom, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, null);
+	}
+	public EditJournal(byte[] rom, TilesetCache cache)
+	{
+		this(rom, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, cache);
+	}
+	public EditJournal(byte[] rom, int maxEntries, long maxBytes)
+	{
+		this(rom, maxEntries, maxBytes, null);
+	}
+	public EditJournal(byte[] rom, int maxEntries, long maxBytes, TilesetCache cache)
+	{
+		this.rom = Objects.requireNonNull(rom);
+		this.cache = cache;
+		setLimits(maxEntries, maxBytes);
+	}
+	
+	public byte[] getROM()
+	{
+		return rom;
+	}
+	public TilesetCache getTilesetCache()
+	{
+		return cache;
+	}
+	
+	//Returns the number of bytes saved by sharing identical object lists
+	public int saveMainObjectArray(MDirectObject[][] objectArr, MoonwalkerMetadata meta)
+			throws OutOfSpaceException
+	{
+		IntRangeSet usedBefore = meta.getUsedROMSpace(MoonwalkerObjectIO.class,
+				MoonwalkerObjectIO.MAIN_OBJECT_ARRAY_KEY);
+		OverlayArrayWrapper overlay = new OverlayArrayWrapper(rom);
+		int savedBytes;
+		try
+		{
+			savedBytes = MoonwalkerObjectIO.writeMainObjectArray(overlay, objectArr, meta);
+		}
+		catch (OutOfSpaceException | RuntimeException e)
+		{
+			overlay.discard();
+			throw e;
+		}
+		IntRangeSet usedAfter = meta.getUsedROMSpace(MoonwalkerObjectIO.class,
+				MoonwalkerObjectIO.MAIN_OBJECT_ARRAY_KEY);
+		record("Save objects", overlay, new SpaceChange(meta, MoonwalkerObjectIO.class,
+				MoonwalkerObjectIO.MAIN_OBJECT_ARRAY_KEY, usedBefore, usedAfter));
+		return savedBytes;
+	}
+	public void fixChecksum()
+	{
+		OverlayArrayWrapper overlay = new OverlayArrayWrapper(rom);
+		MoonwalkerIO.fixChecksum(overlay, rom.length);
+		record("Fix checksum", overlay, null);
+	}
+	
+	public boolean canUndo()
+	{
+		return !undoStack.isEmpty();
+	}
+	public boolean canRedo()
+	{
+		return !redoStack.isEmpty();
+	}
+	public String getUndoDescription()
+	{
+		return undoStack.isEmpty() ? null : undoStack.peek().description;
+	}
+	public String getRedoDescription()
+	{
+		return redoStack.isEmpty() ? null : redoStack.peek().description;
+	}
+	public void undo()
+	{
+		if (undoStack.isEmpty())
+			throw new IllegalStateException("Nothing to undo");
+		Entry e = undoStack.pop();
+		e.write(rom, e.before);
+		invalidate(e.starts, e.lengths);
+		if (e.space != null)
+			e.space.restore(e.space.before);
+		redoStack.push(e);
+	}
+	public void redo()
+	{
+		if (redoStack.isEmpty())
+			throw new IllegalStateException("Nothing to redo");
+		Entry e = redoStack.pop();
+		e.write(rom, e.after);
+		invalidate(e.starts, e.lengths);
+		if (e.space != null)
+			e.space.restore(e.space.after);
+		undoStack.push(e);
+	}
+	
+	public int getUndoCount()
+	{
+		return undoStack.size();
+	}
+	public int getRedoCount()
+	{
+		return redoStack.size();
+	}
+	//Bytes of ROM content held by the history
+	public long getByteSize()
+	{
+		return byteSize;
+	}
+	public void setLimits(int maxEntries, long maxBytes)
+	{
+		if (maxEntries < 0)
+			throw new IllegalArgumentException("maxEntries < 0");
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("maxBytes < 0");
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		evict();
+	}
+	public int getMaxEntries()
+	{
+		return maxEntries;
+	}
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+	public void clear()
+	{
+		undoStack.clear();
+		redoStack.clear();
+		byteSize = 0;
+	}
+	
+	private void record(String description, OverlayArrayWrapper overlay, SpaceChange space)
+	{
+		IntRangeSet changed = overlay.getChangedRanges();
+		if (changed.isEmpty() && (space == null || space.before.equals(space.after)))
+		{
+			overlay.discard();
+			return;
+		}
+		
+		IntRange[] ranges = changed.getRangeArray();
+		int[] starts = new int[ranges.length];
+		int[] lengths = new int[ranges.length];
+		int total = 0;
+		for (int i = 0; i < ranges.length; i++)
+		{
+			starts[i] = ranges[i].getStart();
+			lengths[i] = ranges[i].getEnd() - ranges[i].getStart();
+			total += lengths[i];
+		}
+		byte[] before = new byte[total];
+		byte[] after = new byte[total];
+		int off = 0;
+		for (int i = 0; i < ranges.length; i++)
+		{
+			System.arraycopy(rom, starts[i], before, off, lengths[i]);
+			System.arraycopy(overlay.getBlock(starts[i], lengths[i]), 0, after, off, lengths[i]);
+			off += lengths[i];
+		}
+		overlay.commit();
+		invalidate(starts, lengths);
+		
+		for (Entry e: redoStack)
+			byteSize -= e.getByteSize();
+		redoStack.clear();
+		Entry e = new Entry(description, starts, lengths, before, after, space);
+		undoStack.push(e);
+		byteSize += e.getByteSize();
+		evict();
+	}
+	private void invalidate(int[] starts, int[] lengths)
+	{
+		if (cache == null)
+			return;
+		for (int i = 0; i < starts.length; i++)
+			cache.invalidate(rom, starts[i], starts[i] + lengths[i]);
+	}
+	private void evict()
+	{
+		while (!redoStack.isEmpty() && (undoStack.size() + redoStack.size() > maxEntries || byteSize > maxBytes))
+			byteSize -= redoStack.removeLast().getByteSize();
+		while (!undoStack.isEmpty() && (undoStack.size() > maxEntries || byteSize > maxBytes))
+			byteSize -= undoStack.removeLast().getByteSize();
+	}
+	
+	private static class Entry
+	{
+		private final String description;
+		private final int[] starts;
+		private final int[] lengths;
+		private final byte[] before;
+		private final byte[] after;
+		private final SpaceChange space;
+		
+		private Entry(String description, int[] starts, int[] lengths, byte[] before, byte[] after,
+				SpaceChange space)
+		{
+			this.description = description;
+			this.starts = starts;
+			this.lengths = lengths;
+			this.before = before;
+			this.after = after;
+			this.space = space;
+		}
+		
+		private void write(byte[] rom, byte[] content)
+		{
+			int off = 0;
+			for (int i = 0; i < starts.length; i++)
+			{
+				System.arraycopy(content, off, rom, starts[i], lengths[i]);
+				off += lengths[i];
+			}
+		}
+		private long getByteSize()
+		{
+			return 2L * before.length;
+		}
+	}
+	//ROM space accounting of a use case before and after an edit
+	private static class SpaceChange
+	{
+		private final MoonwalkerMetadata meta;
+		private final Class<?> cl;
+		private final String usecase;
+		private final IntRangeSet before;
+		private final IntRangeSet after;
+		
+		private SpaceChange(MoonwalkerMetadata meta, Class<?> cl, String usecase,
+				IntRangeSet before, IntRangeSet after)
+		{
+			this.meta = meta;
+			this.cl = cl;
+			this.usecase = usecase;
+			this.before = before;
+			this.after = after;
+		}
+		
+		private void restore(IntRangeSet used)
+		{
+			meta.releaseAllROMSpace(cl, usecase);
+			meta.assignROMSpace(cl, usecase, used);
+		}
+	}
+}
@@ -17,247 +17,293 @@
 
 package moonwalker.core.utils;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Objects;
 
 public class IntRangeSet
 {
-	private IntRange[] rArr;
+	//Sorted start/end pairs of non-empty ranges that neither overlap nor touch.
+	//Only the first 2 * count entries are in use.
+	private final int[] bounds;
+	private final int count;
 	
 	public static final IntRangeSet EMPTY = new IntRangeSet();
 	
 	private IntRangeSet()
 	{
-		rArr = new IntRange[0];
+		bounds = new int[0];
+		count = 0;
 	}
 	public IntRangeSet(int start, int end)
 	{
-		rArr = new IntRange[]{new IntRange(start, end)};
+		if (end < start)
+			throw new IllegalArgumentException("Illegal range: End < Start");
+		if (start == end)
+		{
+			bounds = new int[0];
+			count = 0;
+		}
+		else
+		{
+			bounds = new int[]{start, end};
+			count = 1;
+		}
 	}
 	
-	private IntRangeSet(ArrayList<IntRange> ranges, boolean normalized)
+	private IntRangeSet(int[] bounds, int count)
 	{
-		if (normalized)
-			rArr = ranges.toArray(l -> new IntRange[l]);
-		else
-			rArr = normalize(ranges.toArray(l -> new IntRange[l]));
+		this.bounds = bounds;
+		this.count = count;
 	}
 	
 	public IntRangeSet(IntRange... ranges)
 	{
-		rArr = normalize(ranges);
+		Objects.requireNonNull(ranges);
+		int[] arr = new int[ranges.length * 2];
+		for (int i = 0; i < ranges.length; i++)
+		{
+			arr[2 * i] = ranges[i].getStart();
+			arr[(2 * i) + 1] = ranges[i].getEnd();
+		}
+		bounds = arr;
+		count = normalize(arr, ranges.length);
 	}
 	public IntRangeSet(Collection<IntRange> ranges)
 	{
-		rArr = normalize(ranges.toArray(l -> new IntRange[l]));
+		this(ranges.toArray(l -> new IntRange[l]));
 	}
 	
-	private IntRange[] normalize(IntRange[] rangeArr)
+	//Sorts and merges the first n pairs of arr in place, returning the resulting pair count
+	private static int normalize(int[] arr, int n)
 	{
-		Objects.requireNonNull(rangeArr);
-		ArrayList<IntRange> sortedRanges = new ArrayList<>(Arrays.asList(rangeArr));
-		sortedRanges.sort((a, b) ->
+		boolean sorted = true;
+		for (int i = 1; i < n; i++)
 		{
-			return a.getStart() - b.getStart();
-		});
-		
-		ArrayList<IntRange> normalizedRanges = new ArrayList<>(sortedRanges.size());
-		IntRange lastRange = null;
-		for (IntRange r: sortedRanges)
-		{
-			int currStart = r.getStart();
-			int currEnd = r.getEnd();
-			if (currStart == currEnd)
-				continue;
-			
-			if (lastRange != null)
+			if (arr[2 * i] < arr[2 * (i - 1)])
 			{
-				int lastEnd = lastRange.getEnd();
-				if (lastEnd >= currStart)
-					lastRange = new IntRange(Math.min(lastRange.getStart(), currStart),
-							Math.max(currEnd, lastEnd));
-				else
-				{
-					normalizedRanges.add(lastRange);
-					lastRange = r;
-				}
-			}
-			else
-				lastRange = r;
-		}
-		if (lastRange != null)
-			normalizedRanges.add(lastRange);
-		
-		return normalizedRanges.toArray(l -> new IntRange[l]);
-	}
-	private IntRangeSet addOneRange(IntRange[] srcArr, IntRange r)
-	{
-		int rStart = r.getStart();
-		int rEnd = r.getEnd();
-		
-		boolean rangeAdded = false;
-		ArrayList<IntRange> rangeList = new ArrayList<>(Arrays.asList(srcArr));
-		ArrayList<IntRange> newRangeList = new ArrayList<>(srcArr.length + 1);
-		int l = rangeList.size();
-		int i = 0;
-		for (; i < l; i++)
-		{
-			IntRange currR = rangeList.get(i);
-			if (currR.getEnd() >= rStart)
+				sorted = false;
 				break;
+			}
 		}
-		newRangeList.addAll(rangeList.subList(0, i));
-		if (i < l)
+		if (!sorted)
 		{
-			int currStart = rangeList.get(i).getStart();
-			if (currStart < rStart)
+			//Signed start in the high half keeps the natural ordering
+			long[] keys = new long[n];
+			for (int i = 0; i < n; i++)
+				keys[i] = (((long) arr[2 * i]) << 32) | (arr[(2 * i) + 1] & 0xFFFFFFFFL);
+			Arrays.sort(keys);
+			for (int i = 0; i < n; i++)
 			{
-				r = new IntRange(currStart, rEnd);
-				rStart = currStart;
+				arr[2 * i] = (int) (keys[i] >> 32);
+				arr[(2 * i) + 1] = (int) keys[i];
 			}
 		}
-		for (; i < l; i++)
+		
+		int w = 0;
+		for (int i = 0; i < n; i++)
 		{
-			IntRange currR = rangeList.get(i);
-			int currStart = currR.getStart();
-			int currEnd = currR.getEnd();
-			if (currStart > rEnd)
+			int start = arr[2 * i];
+			int end = arr[(2 * i) + 1];
+			if (start == end)
+				continue;
+			if ((w > 0) && (start <= arr[w - 1]))
 			{
-				newRangeList.add(r);
-				rangeAdded = true;
-				break;
+				if (end > arr[w - 1])
+					arr[w - 1] = end;
 			}
-			else if (currEnd >= rEnd)
+			else
 			{
-				newRangeList.add(new IntRange(rStart, currEnd));
-				rangeAdded = true;
-				i++;
-				break;
+				arr[w++] = start;
+				arr[w++] = end;
 			}
 		}
-		if (rangeAdded)
-			newRangeList.addAll(rangeList.subList(i, l));
-		else
-			newRangeList.add(r);
-		
-		return new IntRangeSet(newRangeList, true);
+		return w / 2;
 	}
 	
 	public IntRangeSet union(IntRangeSet rs)
 	{
 		Objects.requireNonNull(rs);
 		
-		if (rArr.length == 0)
+		if (count == 0)
 			return rs;
-		if (rs.rArr.length == 0)
+		if (rs.count == 0)
 			return this;
-		else if (rs.rArr.length == 1)
-			return addOneRange(rArr, rs.rArr[0]);
-		else if (rArr.length == 1)
-			return addOneRange(rs.rArr, rArr[0]);
 		
-		ArrayList<IntRange> newRangeSet = new ArrayList<>();
-		for (IntRange r: rArr)
-			newRangeSet.add(r);
-		for (IntRange r: rs.rArr)
-			newRangeSet.add(r);
-		return new IntRangeSet(newRangeSet);
+		int[] a = bounds;
+		int[] b = rs.bounds;
+		int aEnd = 2 * count;
+		int bEnd = 2 * rs.count;
+		int[] out = new int[aEnd + bEnd];
+		int i = 0;
+		int j = 0;
+		int w = 0;
+		while ((i < aEnd) || (j < bEnd))
+		{
+			int start;
+			int end;
+			if ((j >= bEnd) || ((i < aEnd) && (a[i] <= b[j])))
+			{
+				start = a[i];
+				end = a[i + 1];
+				i += 2;
+			}
+			else
+			{
+				start = b[j];
+				end = b[j + 1];
+				j += 2;
+			}
+			if ((w > 0) && (start <= out[w - 1]))
+			{
+				if (end > out[w - 1])
+					out[w - 1] = end;
+			}
+			else
+			{
+				out[w++] = start;
+				out[w++] = end;
+			}
+		}
+		return new IntRangeSet(out, w / 2);
 	}
 	public IntRangeSet union(IntRange r)
 	{
 		Objects.requireNonNull(r);
-		
-		if (rArr.length == 0)
-			return new IntRangeSet(r);
-		return addOneRange(rArr, r);
+		return union(new IntRangeSet(r.getStart(), r.getEnd()));
 	}
 	public IntRangeSet difference(IntRangeSet rs)
 	{
 		Objects.requireNonNull(rs);
 		
-		ArrayList<IntRange> newRangeSet = new ArrayList<>();
-		
-		IntRange[] subArr = rs.rArr;
-		if (subArr.length == 0)
+		if ((count == 0) || (rs.count == 0))
 			return this;
 		
-		int i = 0;
-		int subInd = 0;
-		while (i < rArr.length)
+		int[] sub = rs.bounds;
+		int subEnd = 2 * rs.count;
+		int[] out = new int[2 * (count + rs.count)];
+		int w = 0;
+		int j = 0;
+		for (int i = 0; i < 2 * count; i += 2)
 		{
-			IntRange r = rArr[i];
-			int rStart = r.getStart();
-			int rEnd = r.getEnd();
-			
-			while ((subInd < subArr.length) && (rStart >= subArr[subInd].getEnd()))
-				subInd++;
-			
-			if (subInd >= subArr.length)
-				break;
-			
-			
-			IntRange subR = subArr[subInd];
-			int subStart = subR.getStart();
-			int subEnd = subR.getEnd();
-			while ((subInd < subArr.length) && (subStart < rEnd))
+			int curr = bounds[i];
+			int end = bounds[i + 1];
+			while ((j < subEnd) && (sub[j + 1] <= curr))
+				j += 2;
+			for (int k = j; (k < subEnd) && (sub[k] < end); k += 2)
 			{
-				if (rStart < subStart)
-					newRangeSet.add(new IntRange(rStart, subStart));
-				
-				if (subEnd < rEnd)
-					r = new IntRange(subEnd, rEnd);
-				else
-				{
-					r = null;
-					break;
-				}
-				
-				rStart = r.getStart();
-				rEnd = r.getEnd();
-				subInd++;
-				if (subInd < subArr.length)
+				if (sub[k] > curr)
 				{
-					subR = subArr[subInd];
-					subStart = subR.getStart();
-					subEnd = subR.getEnd();
+					out[w++] = curr;
+					out[w++] = sub[k];
 				}
+				if (sub[k + 1] > curr)
+					curr = sub[k + 1];
+				if (curr >= end)
+					break;
+			}
+			if (curr < end)
+			{
+				out[w++] = curr;
+				out[w++] = end;
 			}
-			
-			if (r != null)
-				newRangeSet.add(r);
-			
-			i++;
-			
-			if (subInd >= subArr.length)
-				break;
 		}
-		for (; i < rArr.length; i++)
-			newRangeSet.add(rArr[i]);
-		
-		return new IntRangeSet(newRangeSet, true);
+		return new IntRangeSet(out, w / 2);
 	}
 	public IntRangeSet difference(IntRange r)
 	{
-		return this.difference(new IntRangeSet(r));
+		return this.difference(new IntRangeSet(r.getStart(), r.getEnd()));
 	}
 	public IntRangeSet intersection(IntRangeSet rs)
 	{
-		return this.difference(this.difference(rs));
+		Objects.requireNonNull(rs);
+		
+		if (count == 0)
+			return this;
+		if (rs.count == 0)
+			return rs;
+		
+		int[] a = bounds;
+		int[] b = rs.bounds;
+		int aEnd = 2 * count;
+		int bEnd = 2 * rs.count;
+		int[] out = new int[aEnd + bEnd];
+		int i = 0;
+		int j = 0;
+		int w = 0;
+		while ((i < aEnd) && (j < bEnd))
+		{
+			int start = Math.max(a[i], b[j]);
+			int end = Math.min(a[i + 1], b[j + 1]);
+			if (start < end)
+			{
+				out[w++] = start;
+				out[w++] = end;
+			}
+			if (a[i + 1] < b[j + 1])
+				i += 2;
+			else
+				j += 2;
+		}
+		return new IntRangeSet(out, w / 2);
 	}
 	public IntRangeSet intersection(IntRange r)
 	{
-		return this.intersection(new IntRangeSet(r));
+		return this.intersection(new IntRangeSet(r.getStart(), r.getEnd()));
+	}
+	
+	public boolean contains(int value)
+	{
+		int i = floorIndex(value);
+		return (i >= 0) && (value < bounds[(2 * i) + 1]);
+	}
+	//Whether the whole of [start, end) is in the set
+	public boolean contains(int start, int end)
+	{
+		if (start >= end)
+			return true;
+		int i = floorIndex(start);
+		return (i >= 0) && (end <= bounds[(2 * i) + 1]);
+	}
+	//Whether any part of [start, end) is in the set
+	public boolean overlaps(int start, int end)
+	{
+		if (start >= end)
+			return false;
+		int i = floorIndex(end - 1);
+		return (i >= 0) && (start < bounds[(2 * i) + 1]);
+	}
+	//Index of the last range starting at or before value, or -1
+	private int floorIndex(int value)
+	{
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (bounds[2 * mid] <= value)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return hi;
+	}
+	
+	public boolean isEmpty()
+	{
+		return count == 0;
+	}
+	public int getRangeCount()
+	{
+		return count;
 	}
 	
 	public IntRange findContinuousRange(int size)
 	{
-		for (IntRange r: rArr)
+		for (int i = 0; i < 2 * count; i += 2)
 		{
-			int start = r.getStart();
-			int end = r.getEnd();
-			if ((end - start) >= size)
+			int start = bounds[i];
+			if ((bounds[i + 1] - start) >= size)
 				return new IntRange(start, start + size);
 		}
 		return null;
@@ -265,7 +311,10 @@ public class IntRangeSet
 	
 	public IntRange[] getRangeArray()
 	{
-		return Arrays.copyOf(rArr, rArr.length);
+		IntRange[] ret = new IntRange[count];
+		for (int i = 0; i < count; i++)
+			ret[i] = new IntRange(bounds[2 * i], bounds[(2 * i) + 1]);
+		return ret;
 	}
 	
 	@Override
@@ -278,7 +327,9 @@ public class IntRangeSet
 		if (getClass() != obj.getClass())
 			return false;
 		IntRangeSet other = (IntRangeSet) obj;
-		if (!Arrays.equals(rArr, other.rArr))
+		if (count != other.count)
+			return false;
+		if (!Arrays.equals(bounds, 0, 2 * count, other.bounds, 0, 2 * count))
 			return false;
 		return true;
 	}
@@ -287,27 +338,126 @@ public class IntRangeSet
 	{
 		final int prime = 53;
 		int result = 1;
-		result = prime * result + Arrays.hashCode(rArr);
+		for (int i = 0; i < 2 * count; i++)
+			result = prime * result + bounds[i];
 		return result;
 	}
 	@Override
 	public String toString()
 	{
 		StringBuilder sb = new StringBuilder("{");
-		for (IntRange r: rArr)
+		for (int i = 0; i < 2 * count; i += 2)
 		{
 			sb.append("[");
-			sb.append(r.getStart());
+			sb.append(bounds[i]);
 			sb.append(", ");
-			sb.append(r.getEnd());
+			sb.append(bounds[i + 1]);
 			sb.append("], ");
 		}
-		if (rArr.length > 0)
+		if (count > 0)
 			sb.setLength(sb.length() - 2);
 		sb.append("}");
 		return sb.toString();
 	}
 	
+	//Accumulates ranges without creating intermediate sets. Appending in ascending order,
+	//or touching the last added range, is O(1); anything else is sorted out in build().
+	public static class Builder
+	{
+		private int[] bounds;
+		private int size;
+		private boolean normalized;
+		private boolean shared;
+		private IntRangeSet built;
+		
+		public Builder()
+		{
+			this(16);
+		}
+		public Builder(int capacity)
+		{
+			bounds = new int[Math.max(2 * capacity, 2)];
+			size = 0;
+			normalized = true;
+			shared = false;
+		}
+		
+		public Builder add(int start, int end)
+		{
+			if (end < start)
+				throw new IllegalArgumentException("Illegal range: End < Start");
+			if (start == end)
+				return this;
+			
+			if (shared)
+			{
+				bounds = Arrays.copyOf(bounds, bounds.length);
+				shared = false;
+			}
+			built = null;
+			
+			if (size > 0)
+			{
+				int lastStart = bounds[size - 2];
+				int lastEnd = bounds[size - 1];
+				if ((start <= lastEnd) && (end >= lastStart))
+				{
+					if (start < lastStart)
+					{
+						bounds[size - 2] = start;
+						normalized = false;
+					}
+					if (end > lastEnd)
+						bounds[size - 1] = end;
+					return this;
+				}
+				if (start < lastStart)
+					normalized = false;
+			}
+			if (size == bounds.length)
+				bounds = Arrays.copyOf(bounds, 2 * size);
+			bounds[size++] = start;
+			bounds[size++] = end;
+			return this;
+		}
+		public Builder add(IntRange r)
+		{
+			return add(r.getStart(), r.getEnd());
+		}
+		public Builder addAll(IntRangeSet rs)
+		{
+			for (int i = 0; i < 2 * rs.count; i += 2)
+				add(rs.bounds[i], rs.bounds[i + 1]);
+			return this;
+		}
+		
+		public boolean isEmpty()
+		{
+			return size == 0;
+		}
+		
+		//The returned set shares this builder's array; later additions copy it first
+		public IntRangeSet build()
+		{
+			if (built == null)
+			{
+				if (!normalized)
+				{
+					size = 2 * normalize(bounds, size / 2);
+					normalized = true;
+				}
+				if (size == 0)
+					built = EMPTY;
+				else
+				{
+					built = new IntRangeSet(bounds, size / 2);
+					shared = true;
+				}
+			}
+			return built;
+		}
+	}
+	
 //	public static void main(String[] args)
 //	{
 //		JFrame frame = new JFrame();
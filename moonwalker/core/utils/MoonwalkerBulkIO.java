@@ -0,0 +1,115 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+import moonwalker.core.structures.MDirectObject;
+import moonwalker.core.structures.MoonwalkerPalette;
+import moonwalker.core.structures.MoonwalkerROMContent;
+import moonwalker.core.structures.MoonwalkerStageArea;
+import moonwalker.core.structures.ObjectTable;
+
+//Loads every stage area, palette and object array of a ROM as separate tasks. Each task reads
+//through its own tracking wrapper over the shared ROM, and the tracked space is assigned to
+//the metadata only after all tasks finished, in the order the sequential loaders would use,
+//so the resulting metadata does not depend on scheduling.
+class MoonwalkerBulkIO
+{
+	private MoonwalkerBulkIO() {}
+	
+	static MoonwalkerROMContent loadAll(byte[] rom, MoonwalkerMetadata meta, Executor executor,
+			TilesetCache cache)
+	{
+		return loadAll(new ArrayWrapper(rom), () -> new TPArrayWrapper(rom),
+				() -> new TrackableArrayWrapper(rom), meta, executor, cache);
+	}
+	static MoonwalkerROMContent loadAll(ByteBuffer rom, MoonwalkerMetadata meta, Executor executor,
+			TilesetCache cache)
+	{
+		ByteBuffer shared = rom.slice();
+		return loadAll(new ArrayWrapper(shared), () -> new TPArrayWrapper(shared),
+				() -> new TrackableArrayWrapper(shared), meta, executor, cache);
+	}
+	
+	//Palettes are not tracked, so their tasks share one plain wrapper. Stages sharing a tileset
+	//decode it once through the cache.
+	private static MoonwalkerROMContent loadAll(ArrayWrapper paletteSrc, Supplier<TPArrayWrapper> stageSrc,
+			Supplier<TrackableArrayWrapper> objectSrc, MoonwalkerMetadata meta, Executor executor,
+			TilesetCache cache)
+	{
+		int stageCount = meta.getRegionTableLength();
+		
+		TPArrayWrapper[] stageWrappers = new TPArrayWrapper[stageCount];
+		ArrayList<CompletableFuture<MoonwalkerStageArea>> areaTasks = new ArrayList<>(stageCount);
+		ArrayList<CompletableFuture<MoonwalkerPalette>> paletteTasks = new ArrayList<>(stageCount);
+		for (int i = 0; i < stageCount; i++)
+		{
+			int stageIndex = i;
+			TPArrayWrapper src = stageSrc.get();
+			stageWrappers[i] = src;
+			areaTasks.add(CompletableFuture.supplyAsync(() ->
+					MoonwalkerStageIO.decodeMainStageArea(src, stageIndex, meta, cache), executor));
+			paletteTasks.add(CompletableFuture.supplyAsync(() ->
+					MoonwalkerStageIO.loadPalette(paletteSrc, stageIndex, meta), executor));
+		}
+		TrackableArrayWrapper mainSrc = objectSrc.get();
+		CompletableFuture<MDirectObject[][]> mainTask = CompletableFuture.supplyAsync(() ->
+				ObjectTable.toArrays(MoonwalkerObjectIO.decodeMainObjectTables(mainSrc, meta)), executor);
+		TrackableArrayWrapper caveSrc = objectSrc.get();
+		CompletableFuture<MDirectObject[][]> caveTask = CompletableFuture.supplyAsync(() ->
+				ObjectTable.toArrays(MoonwalkerObjectIO.decodeCaveObjectTables(caveSrc, meta)), executor);
+		
+		MoonwalkerStageArea[] areas = new MoonwalkerStageArea[stageCount];
+		MoonwalkerPalette[] palettes = new MoonwalkerPalette[stageCount];
+		for (int i = 0; i < stageCount; i++)
+		{
+			areas[i] = join(areaTasks.get(i));
+			palettes[i] = join(paletteTasks.get(i));
+		}
+		MDirectObject[][] mainObjects = join(mainTask);
+		MDirectObject[][] caveObjects = join(caveTask);
+		
+		for (int i = 0; i < stageCount; i++)
+			meta.assignROMSpace(MoonwalkerStageIO.class, MoonwalkerStageIO.MAIN_STAGE_AREA_KEY,
+					stageWrappers[i].getRangeSet());
+		meta.assignROMSpace(MoonwalkerObjectIO.class, MoonwalkerObjectIO.MAIN_OBJECT_ARRAY_KEY,
+				mainSrc.getRangeSet());
+		meta.assignROMSpace(MoonwalkerObjectIO.class, MoonwalkerObjectIO.CAVE_OBJECT_ARRAY_KEY,
+				caveSrc.getRangeSet());
+		
+		return new MoonwalkerROMContent(areas, palettes, mainObjects, caveObjects);
+	}
+	private static <T> T join(CompletableFuture<T> task)
+	{
+		try
+		{
+			return task.join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+}
@@ -18,14 +18,69 @@
 package moonwalker.core.utils;
 
 import java.awt.Point;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.Executor;
 import moonwalker.core.structures.MDirectObject;
 import moonwalker.core.structures.MoonwalkerPalette;
+import moonwalker.core.structures.MoonwalkerROMContent;
 import moonwalker.core.structures.MoonwalkerStageArea;
+import moonwalker.core.structures.ObjectTable;
 
 public class MoonwalkerIO
 {
 	private MoonwalkerIO() {}
 	
+	//Maps a ROM file for the ByteBuffer overloads without copying it onto the heap.
+	//Savers given a writable mapping write straight to the file.
+	public static MappedByteBuffer mapROM(Path path) throws IOException
+	{
+		return mapROM(path, false);
+	}
+	public static MappedByteBuffer mapROM(Path path, boolean writable) throws IOException
+	{
+		try (FileChannel channel = writable
+				? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(path, StandardOpenOption.READ))
+		{
+			return channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+		}
+	}
+	
+	//Loads all stage areas, palettes and object arrays as concurrent tasks on the executor,
+	//e.g. ForkJoinPool.commonPool() or a virtual thread executor on newer JDKs.
+	//The metadata ends up the same as after loading them one by one.
+	//Tilesets are shared between stages through a cache that only lives for this call,
+	//unless one is given.
+	public static MoonwalkerROMContent loadAll(byte[] rom, MoonwalkerMetadata meta, Executor executor)
+	{
+		return loadAll(rom, meta, executor, new TilesetCache());
+	}
+	public static MoonwalkerROMContent loadAll(ByteBuffer rom, MoonwalkerMetadata meta, Executor executor)
+	{
+		return loadAll(rom, meta, executor, new TilesetCache());
+	}
+	public static MoonwalkerROMContent loadAll(byte[] rom, MoonwalkerMetadata meta, Executor executor,
+			TilesetCache cache)
+	{
+		Objects.requireNonNull(executor);
+		Objects.requireNonNull(cache);
+		return MoonwalkerBulkIO.loadAll(rom, meta, executor, cache);
+	}
+	public static MoonwalkerROMContent loadAll(ByteBuffer rom, MoonwalkerMetadata meta, Executor executor,
+			TilesetCache cache)
+	{
+		Objects.requireNonNull(executor);
+		Objects.requireNonNull(cache);
+		return MoonwalkerBulkIO.loadAll(rom, meta, executor, cache);
+	}
+	
 	public static MDirectObject[][] loadMainObjectArray(byte[] rom, MoonwalkerMetadata meta)
 	{
 		return MoonwalkerObjectIO.readMainObjectArray(rom, meta);
@@ -34,26 +89,125 @@ public class MoonwalkerIO
 	{
 		return MoonwalkerObjectIO.readCaveObjectArray(rom, meta);
 	}
+	public static MDirectObject[][] loadMainObjectArray(ByteBuffer rom, MoonwalkerMetadata meta)
+	{
+		return MoonwalkerObjectIO.readMainObjectArray(rom, meta);
+	}
+	public static MDirectObject[][] loadCaveObjectArray(ByteBuffer rom, MoonwalkerMetadata meta)
+	{
+		return MoonwalkerObjectIO.readCaveObjectArray(rom, meta);
+	}
 	public static void saveMainObjectArray(byte[] sourceRom, MDirectObject[][] objectArr,
 			MoonwalkerMetadata meta) throws OutOfSpaceException
 	{
 		MoonwalkerObjectIO.writeMainObjectArray(sourceRom, objectArr, meta);
 	}
+	public static void saveMainObjectArray(ByteBuffer sourceRom, MDirectObject[][] objectArr,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		MoonwalkerObjectIO.writeMainObjectArray(sourceRom, objectArr, meta);
+	}
+	//Like saveMainObjectArray(), returning the number of bytes saved by sharing identical object lists
+	public static int saveMainObjectArrayWithStats(byte[] sourceRom, MDirectObject[][] objectArr,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		return MoonwalkerObjectIO.writeMainObjectArray(sourceRom, objectArr, meta);
+	}
+	public static int saveMainObjectArrayWithStats(ByteBuffer sourceRom, MDirectObject[][] objectArr,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		return MoonwalkerObjectIO.writeMainObjectArray(sourceRom, objectArr, meta);
+	}
+	public static ObjectTable[] loadMainObjectTables(byte[] rom, MoonwalkerMetadata meta)
+	{
+		return MoonwalkerObjectIO.readMainObjectTables(rom, meta);
+	}
+	public static ObjectTable[] loadCaveObjectTables(byte[] rom, MoonwalkerMetadata meta)
+	{
+		return MoonwalkerObjectIO.readCaveObjectTables(rom, meta);
+	}
+	public static ObjectTable[] loadMainObjectTables(ByteBuffer rom, MoonwalkerMetadata meta)
+	{
+		return MoonwalkerObjectIO.readMainObjectTables(rom, meta);
+	}
+	public static ObjectTable[] loadCaveObjectTables(ByteBuffer rom, MoonwalkerMetadata meta)
+	{
+		return MoonwalkerObjectIO.readCaveObjectTables(rom, meta);
+	}
+	public static void saveMainObjectTables(byte[] sourceRom, ObjectTable[] tables,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		MoonwalkerObjectIO.writeMainObjectTables(sourceRom, tables, meta);
+	}
+	public static void saveMainObjectTables(ByteBuffer sourceRom, ObjectTable[] tables,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		MoonwalkerObjectIO.writeMainObjectTables(sourceRom, tables, meta);
+	}
+	public static int saveMainObjectTablesWithStats(byte[] sourceRom, ObjectTable[] tables,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		return MoonwalkerObjectIO.writeMainObjectTables(sourceRom, tables, meta);
+	}
+	public static int saveMainObjectTablesWithStats(ByteBuffer sourceRom, ObjectTable[] tables,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		return MoonwalkerObjectIO.writeMainObjectTables(sourceRom, tables, meta);
+	}
 	//TODO saveCaveObjectArray()
 	
 	public static MoonwalkerStageArea loadMainStageArea(byte[] rom, int stageIndex,
 			MoonwalkerMetadata meta)
 	{
-		return MoonwalkerStageIO.readMainStageArea(rom, stageIndex, meta);
+		return MoonwalkerStageIO.readMainStageArea(rom, stageIndex, meta, null);
+	}
+	public static MoonwalkerStageArea loadMainStageArea(ByteBuffer rom, int stageIndex,
+			MoonwalkerMetadata meta)
+	{
+		return MoonwalkerStageIO.readMainStageArea(rom, stageIndex, meta, null);
+	}
+	//Takes the tileset from the cache, or decodes it and adds it there. The cache does not see
+	//writes to the ROM: edits made through an EditJournal holding the cache invalidate it,
+	//anything else that rewrites compressed tileset data has to call cache.invalidate() on
+	//the written range (or the whole ROM) before the next load.
+	public static MoonwalkerStageArea loadMainStageArea(byte[] rom, int stageIndex,
+			MoonwalkerMetadata meta, TilesetCache cache)
+	{
+		Objects.requireNonNull(cache);
+		return MoonwalkerStageIO.readMainStageArea(rom, stageIndex, meta, cache);
+	}
+	public static MoonwalkerStageArea loadMainStageArea(ByteBuffer rom, int stageIndex,
+			MoonwalkerMetadata meta, TilesetCache cache)
+	{
+		Objects.requireNonNull(cache);
+		return MoonwalkerStageIO.readMainStageArea(rom, stageIndex, meta, cache);
 	}
 	//TODO loadCaveArea(), saveMainStageArea(), saveCaveArea()
 	
+	public static byte[] compressPatterns(byte[] patterns, boolean maxCompression)
+	{
+		return MoonwalkerStageIO.compressPatterns(patterns, maxCompression);
+	}
+	public static byte[] decompressPatterns(byte[] rom, int addr)
+	{
+		return MoonwalkerStageIO.decompressPatterns(new ArrayWrapper(rom), addr);
+	}
+	public static byte[] decompressPatterns(ByteBuffer rom, int addr)
+	{
+		return MoonwalkerStageIO.decompressPatterns(new ArrayWrapper(rom), addr);
+	}
+	
 	//TODO remake to account for multiple palletes, savePalette()
 	public static MoonwalkerPalette loadPalette(byte[] rom, int stageIndex,
 			MoonwalkerMetadata meta)
 	{
 		return MoonwalkerStageIO.loadPalette(rom, stageIndex, meta);
 	}
+	public static MoonwalkerPalette loadPalette(ByteBuffer rom, int stageIndex,
+			MoonwalkerMetadata meta)
+	{
+		return MoonwalkerStageIO.loadPalette(rom, stageIndex, meta);
+	}
 	
 	public static Point getInitialCameraPosition(byte[] rom, int stageIndex,
 			MoonwalkerMetadata meta)
@@ -94,9 +248,16 @@ public class MoonwalkerIO
 	
 	public static void fixChecksum(byte[] rom)
 	{
-		ArrayWrapper wrap = new ArrayWrapper(rom);
+		fixChecksum(new ArrayWrapper(rom), rom.length);
+	}
+	public static void fixChecksum(ByteBuffer rom)
+	{
+		fixChecksum(new ArrayWrapper(rom), rom.remaining());
+	}
+	static void fixChecksum(ArrayWrapper wrap, int romLength)
+	{
 		short buf = 0;
-		for (int i = 0x200; i < rom.length; i += 2)
+		for (int i = 0x200; i < romLength; i += 2)
 			buf += wrap.getShort(i);
 		wrap.putShort(0x18E, buf);
 	}
@@ -46,4 +46,17 @@ public interface MoonwalkerMetadata
 	public void assignROMSpace(Class<?> cl, String usecase, IntRangeSet consumedSpace);
 	public void clearROMSpace(Class<?> cl, String usecase, IntRangeSet freedSpace, byte[] rom);
 	public void clearAllROMSpace(Class<?> cl, String usecase, byte[] rom);
+	//Like clearAllROMSpace(), but leaves the ROM untouched and returns the released space.
+	//The default goes through clearROMSpace() on a scratch array; implementations should override it.
+	public default IntRangeSet releaseAllROMSpace(Class<?> cl, String usecase)
+	{
+		IntRangeSet used = getUsedROMSpace(cl, usecase);
+		clearROMSpace(cl, usecase, used, new byte[getRomLength()]);
+		return used;
+	}
+	public default IntRangeSet getUsedROMSpace(Class<?> cl, String usecase)
+	{
+		//No other use case is registered under this key, so only plain free space remains
+		return getFreeROMSpace(cl, usecase).difference(getFreeROMSpace(MoonwalkerMetadata.class, ""));
+	}
 }
@@ -18,25 +18,48 @@
 package moonwalker.core.utils;
 
 import java.awt.Point;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import moonwalker.core.structures.MDirectObject;
+import moonwalker.core.structures.ObjectTable;
 
 class MoonwalkerObjectIO
 {
 	private MoonwalkerObjectIO()
 	{}
 	
-	private static final String MAIN_OBJECT_ARRAY_KEY = "mainObjectArray";
-	private static final String CAVE_OBJECT_ARRAY_KEY = "caveObjectArray";
+	static final String MAIN_OBJECT_ARRAY_KEY = "mainObjectArray";
+	static final String CAVE_OBJECT_ARRAY_KEY = "caveObjectArray";
 	
 	public static MDirectObject[][] readMainObjectArray(byte[] rom, MoonwalkerMetadata meta)
+	{
+		return ObjectTable.toArrays(readMainObjectTables(rom, meta));
+	}
+	public static MDirectObject[][] readMainObjectArray(ByteBuffer rom, MoonwalkerMetadata meta)
+	{
+		return ObjectTable.toArrays(readMainObjectTables(rom, meta));
+	}
+	public static ObjectTable[] readMainObjectTables(byte[] rom, MoonwalkerMetadata meta)
 	{
 		TrackableArrayWrapper src = new TrackableArrayWrapper(rom);
-		return readMainObjectArray(src, meta);
+		return readMainObjectTables(src, meta);
 	}
-	protected static MDirectObject[][] readMainObjectArray(TrackableArrayWrapper src,
+	public static ObjectTable[] readMainObjectTables(ByteBuffer rom, MoonwalkerMetadata meta)
+	{
+		TrackableArrayWrapper src = new TrackableArrayWrapper(rom);
+		return readMainObjectTables(src, meta);
+	}
+	protected static ObjectTable[] readMainObjectTables(TrackableArrayWrapper src,
 			MoonwalkerMetadata meta)
+	{
+		ObjectTable[] ret = decodeMainObjectTables(src, meta);
+		meta.assignROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY, src.getRangeSet());
+		return ret;
+	}
+	//Leaves the ROM space read by src for the caller to assign
+	static ObjectTable[] decodeMainObjectTables(TrackableArrayWrapper src, MoonwalkerMetadata meta)
 	{
 		int BASE_ADDR = meta.getRegionTableAddress();
 		int mapCount = meta.getRegionTableLength();
@@ -45,13 +68,16 @@ class MoonwalkerObjectIO
 		for (int i = 0; i < mapCount; i++)
 			mapAddr[i] = src.getInt(BASE_ADDR + (i * 4));
 		
-		ArrayList<ArrayList<MDirectObject>> objectListList = new ArrayList<>(mapCount);
+		//Regions and initial tables often share a list; each address is only read once
+		HashMap<Integer, byte[]> blockCache = new HashMap<>();
+		
+		ObjectTable[] ret = new ObjectTable[mapCount];
 		for (int i = 0; i < mapCount; i++)
 		{
 			int yRegionCount = meta.getVerticalRegionCount(i);
 			int xRegionCount = meta.getHorizontalRegionCount(i);
 			
-			ArrayList<MDirectObject> objectList = new ArrayList<>();
+			ObjectTable table = new ObjectTable();
 			
 			for (int i0 = 0; i0 < yRegionCount; i0++)
 			{
@@ -60,156 +86,219 @@ class MoonwalkerObjectIO
 				for (int i1 = 0; i1 < xRegionCount; i1++)
 				{
 					int xBaseAddr = src.getInt(yBaseAddr + (4 * i1));
-					int blockCount = (0xFFFF & src.getShort(xBaseAddr)) + 1;
+					byte[] blockArr = readObjectBlock(src, xBaseAddr, blockCache);
+					int blockCount = blockArr.length / 16;
 					
-					int currAddr = xBaseAddr + 2;
-					if (blockCount < 100)
+					for (int i2 = 0; i2 < blockCount; i2++)
 					{
-						byte[] blockArr = src.getBlock(currAddr, 16 * blockCount);
-						currAddr += blockArr.length;
+						int blockOffset = 16 * i2;
+						int xOffset = ((0xFF & blockArr[blockOffset + 4]) << 8) | (0xFF & blockArr[blockOffset + 5]);
+						int yOffset = ((0xFF & blockArr[blockOffset + 2]) << 8) | (0xFF & blockArr[blockOffset + 3]);
 						
-						for (int i2 = 0; i2 < blockCount; i2++)
-						{
-							int blockOffset = 16 * i2;
-							int xOffset = ((0xFF & blockArr[blockOffset + 4]) << 8) | (0xFF & blockArr[blockOffset + 5]);
-							int yOffset = ((0xFF & blockArr[blockOffset + 2]) << 8) | (0xFF & blockArr[blockOffset + 3]);
-							
-							objectList.add(new MDirectObject(i1, xOffset, i0, yOffset,
-									((0xFF & blockArr[blockOffset]) << 8) | (0xFF & blockArr[blockOffset + 1]),
-									(short) (((0xFF & blockArr[blockOffset + 6]) << 8) | (0xFF & blockArr[blockOffset + 7])),
-									Arrays.copyOfRange(blockArr, blockOffset + 8, blockOffset + 16), MDirectObject.Container.REGION_TABLE));
-						}
+						table.add(i1, xOffset, i0, yOffset,
+								((0xFF & blockArr[blockOffset]) << 8) | (0xFF & blockArr[blockOffset + 1]),
+								(short) (((0xFF & blockArr[blockOffset + 6]) << 8) | (0xFF & blockArr[blockOffset + 7])),
+								blockArr, blockOffset + 8, MDirectObject.Container.REGION_TABLE);
 					}
 				}
 			}
 			
-			objectListList.add(objectList);
+			ret[i] = table;
 		}
 		
 		int initialListLen = meta.getMainInitialTableLength();
 		for (int i = 0; i < initialListLen; i++)
 		{
-			ArrayList<MDirectObject> objectList = new ArrayList<>();
 			Point baseOffset = meta.getMainInitialTableBaseOffset(i);
 			int xBase = baseOffset.x;
 			int yBase = baseOffset.y;
 			
 			int addr = meta.getMainInitialTableAddress(i);
 			int listAddr = src.getInt(addr);
+			byte[] blockArr = readObjectBlock(src, listAddr, blockCache);
+			int blockCount = blockArr.length / 16;
 			
-			int blockCount = (0xFFFF & src.getShort(listAddr)) + 1;
-			
-			int currAddr = listAddr + 2;
-			if (blockCount < 100)
+			//Each initial object is matched against the first equal object in list order,
+			//including initial objects appended before it
+			ObjectTable table = ret[i];
+			HashMap<ContainerlessKey, Integer> sourceIndex = new HashMap<>(2 * (table.size() + blockCount));
+			byte[] objData = new byte[ObjectTable.DATA_LENGTH];
+			for (int i2 = 0; i2 < table.size(); i2++)
 			{
-				byte[] blockArr = src.getBlock(currAddr, 16 * blockCount);
-				currAddr += blockArr.length;
-				
-				for (int i2 = 0; i2 < blockCount; i2++)
-				{
-					int blockOffset = 16 * i2;
-					int xOffset = ((0xFF & blockArr[blockOffset + 4]) << 8) | (0xFF & blockArr[blockOffset + 5]);
-					int yOffset = ((0xFF & blockArr[blockOffset + 2]) << 8) | (0xFF & blockArr[blockOffset + 3]);
-					
-					objectList.add(new MDirectObject(xBase + xOffset, yBase + yOffset,
-							((0xFF & blockArr[blockOffset]) << 8) | (0xFF & blockArr[blockOffset + 1]),
-							(short) (((0xFF & blockArr[blockOffset + 6]) << 8) | (0xFF & blockArr[blockOffset + 7])),
-							Arrays.copyOfRange(blockArr, blockOffset + 8, blockOffset + 16), MDirectObject.Container.INITIAL_TABLE));
-				}
+				table.copyDataTo(i2, objData, 0);
+				sourceIndex.putIfAbsent(new ContainerlessKey(table.getAbsoluteX(i2), table.getAbsoluteY(i2),
+						table.getAllocationAddress(i2), table.getType(i2), objData, 0), i2);
 			}
-
-			ArrayList<MDirectObject> sourceList = objectListList.get(i);
-			L0: for (MDirectObject o:objectList)
+			
+			for (int i2 = 0; i2 < blockCount; i2++)
 			{
-				for (MDirectObject srcObj:sourceList)
-				{
-					if (srcObj.equalsIgnoreContainer(o))
-					{
-						srcObj.setContainer(MDirectObject.Container.ALL_TABLES);
-						continue L0;
-					}
-				}
-				sourceList.add(o);
+				int blockOffset = 16 * i2;
+				int x = xBase + (((0xFF & blockArr[blockOffset + 4]) << 8) | (0xFF & blockArr[blockOffset + 5]));
+				int y = yBase + (((0xFF & blockArr[blockOffset + 2]) << 8) | (0xFF & blockArr[blockOffset + 3]));
+				int objAddr = ((0xFF & blockArr[blockOffset]) << 8) | (0xFF & blockArr[blockOffset + 1]);
+				short type = (short) (((0xFF & blockArr[blockOffset + 6]) << 8) | (0xFF & blockArr[blockOffset + 7]));
+				
+				Integer srcIndex = sourceIndex.putIfAbsent(
+						new ContainerlessKey(x, y, objAddr, type, blockArr, blockOffset + 8), table.size());
+				if (srcIndex != null)
+					table.setContainer(srcIndex, MDirectObject.Container.ALL_TABLES);
+				else
+					table.add(x / MDirectObject.REGION_WIDTH, x % MDirectObject.REGION_WIDTH,
+							y / MDirectObject.REGION_HEIGHT, y % MDirectObject.REGION_HEIGHT,
+							objAddr, type, blockArr, blockOffset + 8, MDirectObject.Container.INITIAL_TABLE);
 			}
 		}
 		
-		meta.assignROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY, src.getRangeSet());
-		
-		MDirectObject[][] ret = new MDirectObject[mapCount][];
-		for (int i = 0; i < ret.length; i++)
-			ret[i] = objectListList.get(i).toArray(l -> new MDirectObject[l]);
-		
 		return ret;
 	}
+	//Reads the 16 byte entries of an object list, or none if the count is implausible.
+	//The returned arrays are shared between callers and must not be modified.
+	private static byte[] readObjectBlock(TrackableArrayWrapper src, int listAddr,
+			HashMap<Integer, byte[]> blockCache)
+	{
+		byte[] blockArr = blockCache.get(listAddr);
+		if (blockArr == null)
+		{
+			int blockCount = (0xFFFF & src.getShort(listAddr)) + 1;
+			if (blockCount < 100)
+				blockArr = src.getBlock(listAddr + 2, 16 * blockCount);
+			else
+				blockArr = new byte[0];
+			blockCache.put(listAddr, blockArr);
+		}
+		return blockArr;
+	}
 	public static MDirectObject[][] readCaveObjectArray(byte[] rom, MoonwalkerMetadata meta)
+	{
+		return ObjectTable.toArrays(readCaveObjectTables(rom, meta));
+	}
+	public static MDirectObject[][] readCaveObjectArray(ByteBuffer rom, MoonwalkerMetadata meta)
+	{
+		return ObjectTable.toArrays(readCaveObjectTables(rom, meta));
+	}
+	public static ObjectTable[] readCaveObjectTables(byte[] rom, MoonwalkerMetadata meta)
+	{
+		TrackableArrayWrapper src = new TrackableArrayWrapper(rom);
+		return readCaveObjectTables(src, meta);
+	}
+	public static ObjectTable[] readCaveObjectTables(ByteBuffer rom, MoonwalkerMetadata meta)
 	{
 		TrackableArrayWrapper src = new TrackableArrayWrapper(rom);
-		return readCaveObjectArray(src, meta);
+		return readCaveObjectTables(src, meta);
 	}
-	protected static MDirectObject[][] readCaveObjectArray(TrackableArrayWrapper src, MoonwalkerMetadata meta)
+	protected static ObjectTable[] readCaveObjectTables(TrackableArrayWrapper src, MoonwalkerMetadata meta)
+	{
+		ObjectTable[] ret = decodeCaveObjectTables(src, meta);
+		meta.assignROMSpace(MoonwalkerObjectIO.class, CAVE_OBJECT_ARRAY_KEY, src.getRangeSet());
+		return ret;
+	}
+	static ObjectTable[] decodeCaveObjectTables(TrackableArrayWrapper src, MoonwalkerMetadata meta)
 	{
 		int mapCount = meta.getCaveInitialTableLength();
-		ArrayList<ArrayList<MDirectObject>> objectListList = new ArrayList<>(mapCount);
+		HashMap<Integer, byte[]> blockCache = new HashMap<>();
+		ObjectTable[] ret = new ObjectTable[mapCount];
 		for (int i = 0; i < mapCount; i++)
 		{
-			ArrayList<MDirectObject> objectList = new ArrayList<>();
-			
 			int addr = meta.getCaveInitialTableAddress(i);
 			int listAddr = src.getInt(addr);
+			byte[] blockArr = readObjectBlock(src, listAddr, blockCache);
+			int blockCount = blockArr.length / 16;
 			
-			int blockCount = (0xFFFF & src.getShort(listAddr)) + 1;
-			
-			int currAddr = listAddr + 2;
-			if (blockCount < 100)
+			ObjectTable table = new ObjectTable(blockCount);
+			for (int i2 = 0; i2 < blockCount; i2++)
 			{
-				byte[] blockArr = src.getBlock(currAddr, 16 * blockCount);
-				currAddr += blockArr.length;
+				int blockOffset = 16 * i2;
+				int x = ((0xFF & blockArr[blockOffset + 4]) << 8) | (0xFF & blockArr[blockOffset + 5]);
+				int y = ((0xFF & blockArr[blockOffset + 2]) << 8) | (0xFF & blockArr[blockOffset + 3]);
 				
-				for (int i2 = 0; i2 < blockCount; i2++)
-				{
-					int blockOffset = 16 * i2;
-					int xOffset = ((0xFF & blockArr[blockOffset + 4]) << 8) | (0xFF & blockArr[blockOffset + 5]);
-					int yOffset = ((0xFF & blockArr[blockOffset + 2]) << 8) | (0xFF & blockArr[blockOffset + 3]);
-					
-					objectList.add(new MDirectObject(xOffset, yOffset,
-							((0xFF & blockArr[blockOffset]) << 8) | (0xFF & blockArr[blockOffset + 1]),
-							(short) (((0xFF & blockArr[blockOffset + 6]) << 8) | (0xFF & blockArr[blockOffset + 7])),
-							Arrays.copyOfRange(blockArr, blockOffset + 8, blockOffset + 16), MDirectObject.Container.INITIAL_TABLE));
-				}
+				table.add(x / MDirectObject.REGION_WIDTH, x % MDirectObject.REGION_WIDTH,
+						y / MDirectObject.REGION_HEIGHT, y % MDirectObject.REGION_HEIGHT,
+						((0xFF & blockArr[blockOffset]) << 8) | (0xFF & blockArr[blockOffset + 1]),
+						(short) (((0xFF & blockArr[blockOffset + 6]) << 8) | (0xFF & blockArr[blockOffset + 7])),
+						blockArr, blockOffset + 8, MDirectObject.Container.INITIAL_TABLE);
 			}
-
-			objectListList.add(objectList);
+			
+			ret[i] = table;
 		}
 		
-		meta.assignROMSpace(MoonwalkerObjectIO.class, CAVE_OBJECT_ARRAY_KEY, src.getRangeSet());
-		
-		MDirectObject[][] ret = new MDirectObject[mapCount][];
-		for (int i = 0; i < ret.length; i++)
-			ret[i] = objectListList.get(i).toArray(l -> new MDirectObject[l]);
-		
 		return ret;
 	}
 	
 	
-	public static void writeMainObjectArray(byte[] rom, MDirectObject[][] objectArr, MoonwalkerMetadata meta) throws OutOfSpaceException
+	//Returns the number of bytes saved by sharing identical object lists
+	public static int writeMainObjectArray(byte[] rom, MDirectObject[][] objectArr, MoonwalkerMetadata meta) throws OutOfSpaceException
 	{
-		ArrayWrapper src = new ArrayWrapper(rom);
-		ArrayWrapper srcCopy = new ArrayWrapper(Arrays.copyOf(rom, rom.length));
-		writeMainObjectArray(srcCopy, objectArr, meta);
-		src.put(0, srcCopy.getSource());
+		return writeThroughOverlay(new OverlayArrayWrapper(rom), ObjectTable.fromArrays(objectArr), meta);
 	}
-	public static void writeMainObjectArray(ArrayWrapper src, MDirectObject[][] objectArr,
+	public static int writeMainObjectArray(ByteBuffer rom, MDirectObject[][] objectArr, MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		return writeThroughOverlay(new OverlayArrayWrapper(rom), ObjectTable.fromArrays(objectArr), meta);
+	}
+	public static int writeMainObjectTables(byte[] rom, ObjectTable[] tables, MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		return writeThroughOverlay(new OverlayArrayWrapper(rom), tables, meta);
+	}
+	public static int writeMainObjectTables(ByteBuffer rom, ObjectTable[] tables, MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		return writeThroughOverlay(new OverlayArrayWrapper(rom), tables, meta);
+	}
+	//Only the pages touched by the save are copied; the ROM is left as is on failure
+	private static int writeThroughOverlay(OverlayArrayWrapper src, ObjectTable[] tables,
 			MoonwalkerMetadata meta) throws OutOfSpaceException
 	{
-		meta.clearAllROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY, src.getSource());
-		
-		IntRange[] freeSpace = meta.getFreeROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY).getRangeArray();
-		int[][] extraSpace = new int[freeSpace.length][2];
-		for (int i = 0; i < freeSpace.length; i++)
+		int savedBytes;
+		try
 		{
-			extraSpace[i][0] = freeSpace[i].getStart();
-			extraSpace[i][1] = freeSpace[i].getEnd();
+			savedBytes = writeMainObjectTables(src, tables, meta);
 		}
+		catch (OutOfSpaceException | RuntimeException e)
+		{
+			src.discard();
+			throw e;
+		}
+		src.commit();
+		return savedBytes;
+	}
+	//On failure the metadata is restored, but data already written to src is not
+	public static int writeMainObjectArray(ArrayWrapper src, MDirectObject[][] objectArr,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		return writeMainObjectTables(src, ObjectTable.fromArrays(objectArr), meta);
+	}
+	public static int writeMainObjectTables(ArrayWrapper src, ObjectTable[] tables,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		IntRangeSet releasedSpace = meta.releaseAllROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY);
+		try
+		{
+			byte[] blank = new byte[0];
+			for (IntRange r: releasedSpace.getRangeArray())
+			{
+				int len = r.getEnd() - r.getStart();
+				if (blank.length < len)
+				{
+					blank = new byte[len];
+					Arrays.fill(blank, (byte) 0xFF);
+				}
+				src.put(r.getStart(), blank, 0, len);
+			}
+			return writeObjectLists(src, tables, meta);
+		}
+		catch (OutOfSpaceException | RuntimeException e)
+		{
+			meta.assignROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY, releasedSpace);
+			throw e;
+		}
+	}
+	private static int writeObjectLists(ArrayWrapper src, ObjectTable[] tables,
+			MoonwalkerMetadata meta) throws OutOfSpaceException
+	{
+		RomSpaceAllocator sharedSpace = new RomSpaceAllocator(
+				meta.getFreeROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY));
+		
+		//Lists are shared across all stages and both tables, keyed by their serialized bytes
+		HashMap<ByteBuffer, Integer> writtenLists = new HashMap<>();
+		int listBytes = 0;
 		
 		int mapCount = meta.getRegionTableLength();
 		//TODO move to metadata
@@ -252,78 +341,65 @@ class MoonwalkerObjectIO
 			0x5F292
 		};
 		
-		int[][] romSpace = new int[extraSpace.length + 1][2];
-		for (int i = 0; i < extraSpace.length; i++)
-		{
-			romSpace[i + 1][0] = extraSpace[i][0];
-			romSpace[i + 1][1] = extraSpace[i][1];
- 		}
-		
 		for (int i = 0; i < mapCount; i++)
 		{
 			int vertRegion = meta.getVerticalRegionCount(i);
 			int horRegion = meta.getHorizontalRegionCount(i);
 			
-			ArrayList<MDirectObject>[][] regionTableList = new ArrayList[vertRegion][horRegion];
-			ArrayList<MDirectObject> initialList = new ArrayList<>();
+			ObjectTable table = tables[i];
 			
-			for (MDirectObject obj:objectArr[i])
+			//Row indices grouped by region in table order, region r owning
+			//regionRows[regionStart[r]] to regionRows[regionStart[r + 1] - 1]
+			int[] regionStart = new int[(vertRegion * horRegion) + 1];
+			int[] regionRows = new int[table.size()];
+			int[] initialRows = new int[table.size()];
+			int initialCount = 0;
+			
+			for (int row = 0; row < table.size(); row++)
 			{
-				boolean inRT = false;
-				boolean inIL = false;
-				
-				switch (obj.getContainer())
-				{
-					case REGION_TABLE:
-						inRT = true;
-						break;
-					case ALL_TABLES:
-						inRT = true;
-						inIL = true;
-						break;
-					case INITIAL_TABLE:
-						inIL = true;
-				}
-				
-				int regX = obj.getRegionX();
-				int regY = obj.getRegionY();
+				int regX = table.getRegionX(row);
+				int regY = table.getRegionY(row);
 				if ((regX >= horRegion) || (regY >= vertRegion))
 					throw new IllegalArgumentException("Object position outside of the map. ("
-							+ obj.getAbsoluteX() + ", " + obj.getAbsoluteY() + ")");
+							+ table.getAbsoluteX(row) + ", " + table.getAbsoluteY(row) + ")");
 				
-				if (inRT)
-				{
-					if (regionTableList[regY][regX] == null)
-						regionTableList[regY][regX] = new ArrayList<>();
-					regionTableList[regY][regX].add(obj);
-				}
-				if (inIL)
-					initialList.add(obj);
+				MDirectObject.Container con = table.getContainer(row);
+				if (con != MDirectObject.Container.INITIAL_TABLE)
+					regionStart[(regY * horRegion) + regX + 1]++;
+				if (con != MDirectObject.Container.REGION_TABLE)
+					initialRows[initialCount++] = row;
+			}
+			for (int r = 0; r < vertRegion * horRegion; r++)
+				regionStart[r + 1] += regionStart[r];
+			int[] regionFill = Arrays.copyOf(regionStart, regionStart.length - 1);
+			for (int row = 0; row < table.size(); row++)
+			{
+				if (table.getContainer(row) != MDirectObject.Container.INITIAL_TABLE)
+					regionRows[regionFill[(table.getRegionY(row) * horRegion) + table.getRegionX(row)]++] = row;
 			}
 			
 			ArrayList<Integer> addressList = new ArrayList<>();
-			ArrayList<ArrayList<byte[]>> writtenDataList = new ArrayList<>();
-			int addr = regionTableAddrArr[i][1];
 			
-			romSpace[0][0] = addr;
-			romSpace[0][1] = limits[i];
+			//The stage's own region table area is used first, shared free space after that
+			RomSpaceAllocator stageSpace = new RomSpaceAllocator(
+					new IntRangeSet(regionTableAddrArr[i][1], limits[i]));
 			
 			//Region table
-			for (int i0 = 0; i0 < regionTableList.length; i0++)
+			for (int i0 = 0; i0 < vertRegion; i0++)
 			{
-				for (int i1 = 0; i1 < regionTableList[i0].length; i1++)
+				for (int i1 = 0; i1 < horRegion; i1++)
 				{
 					ArrayList<byte[]> dataList = new ArrayList<>();
-					if (regionTableList[i0][i1] == null)
-						regionTableList[i0][i1] = new ArrayList<>();
+					int r = (i0 * horRegion) + i1;
 					
-					int size = regionTableList[i0][i1].size() - 1;
+					int size = regionStart[r + 1] - regionStart[r] - 1;
 					dataList.add(new byte[] {(byte) ((size & 0xFF00) >> 8), (byte) (size & 0xFF)});
 					
-					for (MDirectObject obj:regionTableList[i0][i1])
-						dataList.add(serializeRegionObject(obj));
+					for (int i2 = regionStart[r]; i2 < regionStart[r + 1]; i2++)
+						dataList.add(serializeRegionObject(table, regionRows[i2]));
 					
-					writeToRegionTable(src, dataList, romSpace, addressList, writtenDataList);
+					addressList.add(writeObjectList(src, dataList, stageSpace, sharedSpace, writtenLists));
+					listBytes += getByteSize(dataList);
 				}
 			}
 			int currAddr = regionTableAddrArr[i][0];
@@ -340,68 +416,63 @@ class MoonwalkerObjectIO
 				
 				ArrayList<byte[]> dataList = new ArrayList<>();
 				
-				int size = initialList.size() - 1;
+				int size = initialCount - 1;
 				dataList.add(new byte[] {(byte) ((size & 0xFF00) >> 8), (byte) (size & 0xFF)});
 				
-				for (MDirectObject obj:initialList)
-					dataList.add(serializeInitialObject(obj, -baseOff.x, -baseOff.y));
-				
+				for (int i2 = 0; i2 < initialCount; i2++)
+					dataList.add(serializeInitialObject(table, initialRows[i2], -baseOff.x, -baseOff.y));
 				
-				addr = writeMoonwalkerObject(src, dataList, romSpace);
+				int addr = writeObjectList(src, dataList, stageSpace, sharedSpace, writtenLists);
+				listBytes += getByteSize(dataList);
 				src.putInt(meta.getMainInitialTableAddress(i), addr);
 			}
 		}
 		
-		int l = freeSpace.length;
-		ArrayList<IntRange> consumedSpace = new ArrayList<IntRange>(l);
-		for (int i = 0; i < l; i++)
-		{
-			IntRange range = freeSpace[i];
-			int[] conSpArr = romSpace[i + 1];
-			int rangeStart = range.getStart();
-			if (conSpArr[0] > rangeStart)
-				consumedSpace.add(new IntRange(rangeStart, conSpArr[0]));
-			else
-				break;
-		}
+		meta.assignROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY, sharedSpace.getAllocatedSpace());
 		
-		meta.assignROMSpace(MoonwalkerObjectIO.class, MAIN_OBJECT_ARRAY_KEY, new IntRangeSet(consumedSpace));
+		int writtenBytes = 0;
+		for (ByteBuffer list: writtenLists.keySet())
+			writtenBytes += list.capacity();
+		return listBytes - writtenBytes;
 	}
 	
-	private static void writeToRegionTable(ArrayWrapper src,
-			ArrayList<byte[]> dataList, int[][] romSpace,
-			ArrayList<Integer> addressList, ArrayList<ArrayList<byte[]>> writtenDataList) throws OutOfSpaceException
+	private static int writeObjectList(ArrayWrapper src,
+			ArrayList<byte[]> dataList, RomSpaceAllocator stageSpace, RomSpaceAllocator sharedSpace,
+			HashMap<ByteBuffer, Integer> writtenLists) throws OutOfSpaceException
 	{
-		for (int i = writtenDataList.size() - 1; i >= 0; i--)
+		//ByteBuffer equality compares contents, so a hash collision never shares a list
+		ByteBuffer key = toKey(dataList);
+		Integer addr = writtenLists.get(key);
+		if (addr == null)
 		{
-			if (deepEquals(dataList, writtenDataList.get(i)))
-			{
-				addressList.add(addressList.get(i));
-				return;
-			}
+			addr = writeMoonwalkerObject(src, dataList, stageSpace, sharedSpace);
+			writtenLists.put(key, addr);
 		}
-		
-		int addr = writeMoonwalkerObject(src, dataList, romSpace);
-		
-		addressList.add(addr);
-		writtenDataList.add(dataList);
+		return addr;
 	}
-	private static int writeMoonwalkerObject(ArrayWrapper src, ArrayList<byte[]> dataList, int[][] romSpace) throws OutOfSpaceException
+	private static ByteBuffer toKey(ArrayList<byte[]> dataList)
 	{
-		int byteSize = 2 + (16 * (dataList.size() - 1));
+		int size = 0;
+		for (byte[] bArr: dataList)
+			size += bArr.length;
 		
-		int spaceIndex = 0;
-		for (;;)
+		byte[] ret = new byte[size];
+		int off = 0;
+		for (byte[] bArr: dataList)
 		{
-			if ((romSpace[spaceIndex][0] + byteSize) <= romSpace[spaceIndex][1])
-				break;
-			
-			spaceIndex++;
-			if (spaceIndex > romSpace.length)
-				throw new OutOfSpaceException("Not enough space for all data. Try removing some objects.");
+			System.arraycopy(bArr, 0, ret, off, bArr.length);
+			off += bArr.length;
 		}
+		return ByteBuffer.wrap(ret);
+	}
+	private static int writeMoonwalkerObject(ArrayWrapper src, ArrayList<byte[]> dataList,
+			RomSpaceAllocator stageSpace, RomSpaceAllocator sharedSpace) throws OutOfSpaceException
+	{
+		int byteSize = getByteSize(dataList);
 		
-		int addr = romSpace[spaceIndex][0];
+		int addr = stageSpace.tryAllocate(byteSize);
+		if (addr < 0)
+			addr = sharedSpace.allocate(byteSize);
 		
 		int currAddr = addr;
 		for (byte[] bArr: dataList)
@@ -410,33 +481,80 @@ class MoonwalkerObjectIO
 			currAddr += bArr.length;
 		}
 		
-		romSpace[spaceIndex][0] += byteSize;
-		
 		return addr;
 	}
-	private static byte[] serializeRegionObject(MDirectObject obj)
+	//Position, address, type and data of an object; the container is ignored
+	private static class ContainerlessKey
 	{
-		int xOff = obj.getRelativeX();
-		int yOff = obj.getRelativeY();
-		return serializeMoonwalkerObject(obj, xOff, yOff);
+		private final int x;
+		private final int y;
+		private final int addr;
+		private final short type;
+		private final long data;
+		
+		public ContainerlessKey(int x, int y, int addr, short type, byte[] data, int dataOffset)
+		{
+			this.x = x;
+			this.y = y;
+			this.addr = addr;
+			this.type = type;
+			long packed = 0;
+			for (int i = 0; i < ObjectTable.DATA_LENGTH; i++)
+				packed = (packed << 8) | (0xFF & data[dataOffset + i]);
+			this.data = packed;
+		}
+		
+		@Override
+		public boolean equals(Object other)
+		{
+			if (this == other)
+				return true;
+			if (!(other instanceof ContainerlessKey))
+				return false;
+			ContainerlessKey key = (ContainerlessKey) other;
+			return (x == key.x) && (y == key.y) && (addr == key.addr) && (type == key.type)
+					&& (data == key.data);
+		}
+		@Override
+		public int hashCode()
+		{
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + x;
+			result = prime * result + y;
+			result = prime * result + addr;
+			result = prime * result + type;
+			result = prime * result + Long.hashCode(data);
+			return result;
+		}
+	}
+	
+	private static int getByteSize(ArrayList<byte[]> dataList)
+	{
+		return 2 + (16 * (dataList.size() - 1));
+	}
+	private static byte[] serializeRegionObject(ObjectTable table, int row)
+	{
+		int xOff = table.getRelativeX(row);
+		int yOff = table.getRelativeY(row);
+		return serializeMoonwalkerObject(table, row, xOff, yOff);
 	}
-	private static byte[] serializeInitialObject(MDirectObject obj, int xOffset, int yOffset)
+	private static byte[] serializeInitialObject(ObjectTable table, int row, int xOffset, int yOffset)
 	{
-		int xOff = obj.getAbsoluteX() + xOffset;
-		int yOff = obj.getAbsoluteY() + yOffset;
+		int xOff = table.getAbsoluteX(row) + xOffset;
+		int yOff = table.getAbsoluteY(row) + yOffset;
 		
 		if (xOff < 0 || yOff < 0)
 			throw new IllegalArgumentException("Invalid position: (" + xOff + ", " + yOff + ")");
 		
-		return serializeMoonwalkerObject(obj, xOff, yOff);
+		return serializeMoonwalkerObject(table, row, xOff, yOff);
 	}
-	private static byte[] serializeMoonwalkerObject(MDirectObject obj, int x, int y)
+	private static byte[] serializeMoonwalkerObject(ObjectTable table, int row, int x, int y)
 	{
 		byte[] ret = new byte[16];
-		int address = obj.getAllocationAddress();
+		int address = table.getAllocationAddress(row);
 		
-		int type = 0xFFFF & obj.getType();
-		byte[] other = obj.getData();
+		int type = 0xFFFF & table.getType(row);
 		
 		ret[0] = (byte) ((address & 0xFF00) >> 8);
 		ret[1] = (byte) (address & 0xFF);
@@ -446,30 +564,8 @@ class MoonwalkerObjectIO
 		ret[5] = (byte) (x & 0xFF);
 		ret[6] = (byte) ((type & 0xFF00) >> 8);
 		ret[7] = (byte) (type & 0xFF);
-		for (int i2 = 0; i2 < 8; i2++)
-			ret[i2 + 8] = other[i2];
+		table.copyDataTo(row, ret, 8);
 		
 		return ret;
 	}
-	private static boolean deepEquals(ArrayList<byte[]> list1, ArrayList<byte[]> list2)
-	{
-		int l = list1.size();
-		if (l != list2.size())
-			return false;
-		for (int i = 0; i < l; i++)
-		{
-			byte[] arr1 = list1.get(i);
-			byte[] arr2 = list2.get(i);
-			if (arr1 == null)
-				return arr2 == null;
-			if (arr1.length != arr2.length)
-				return false;
-			for (int i0 = 0; i0 < arr1.length; i0++)
-			{
-				if (arr1[i0] != arr2[i0])
-					return false;
-			}
-		}
-		return true;
-	}
 }
@@ -18,21 +18,43 @@
 package moonwalker.core.utils;
 
 import java.nio.ByteBuffer;
+import moonwalker.core.structures.MTablePalette;
 import moonwalker.core.structures.MoonwalkerPalette;
 import moonwalker.core.structures.MoonwalkerStageArea;
+import moonwalker.core.structures.MoonwalkerTileset;
 
 class MoonwalkerStageIO
 {
-	public static MoonwalkerStageArea readMainStageArea(byte[] rom, int stageIndex, MoonwalkerMetadata meta)
+	static final String MAIN_STAGE_AREA_KEY = "mainStageArea";
+	private static final MoonwalkerTileset BLANK_TILESET = new MoonwalkerTileset(new byte[0x1000]);
+	
+	public static MoonwalkerStageArea readMainStageArea(byte[] rom, int stageIndex, MoonwalkerMetadata meta,
+			TilesetCache cache)
 	{
 		TPArrayWrapper src = new TPArrayWrapper(rom);
-		return readMainStageArea(src, stageIndex, meta);
+		return readMainStageArea(src, stageIndex, meta, cache);
+	}
+	public static MoonwalkerStageArea readMainStageArea(ByteBuffer rom, int stageIndex, MoonwalkerMetadata meta,
+			TilesetCache cache)
+	{
+		TPArrayWrapper src = new TPArrayWrapper(rom);
+		return readMainStageArea(src, stageIndex, meta, cache);
+	}
+	protected static MoonwalkerStageArea readMainStageArea(TPArrayWrapper src, int stageIndex, MoonwalkerMetadata meta,
+			TilesetCache cache)
+	{
+		MoonwalkerStageArea ret = decodeMainStageArea(src, stageIndex, meta, cache);
+		meta.assignROMSpace(MoonwalkerStageIO.class, MAIN_STAGE_AREA_KEY, src.getRangeSet());
+		return ret;
 	}
-	protected static MoonwalkerStageArea readMainStageArea(TPArrayWrapper src, int stageIndex, MoonwalkerMetadata meta)
+	//Leaves the ROM space read by src for the caller to assign. Without a cache the tileset is
+	//always decoded.
+	static MoonwalkerStageArea decodeMainStageArea(TPArrayWrapper src, int stageIndex, MoonwalkerMetadata meta,
+			TilesetCache cache)
 	{
 		int srcAddr = src.getInt(meta.getStageMetadataTableAddress() + (stageIndex << 2));
 
-		byte[] tileset = loadTileset(src, stageIndex, meta);
+		MoonwalkerTileset tileset = loadTileset(src, stageIndex, meta, cache);
 		byte[] tilemap = loadTilemap(src, srcAddr);
 		byte[] layerA = loadLayerA(src, srcAddr);
 		byte[] layerB = loadLayerB(src, stageIndex, srcAddr);
@@ -46,8 +68,6 @@ class MoonwalkerStageIO
 //		}
 //		System.out.println();
 		
-		meta.assignROMSpace(MoonwalkerStageIO.class, "mainStageArea", src.getRangeSet());
-		
 		return new MoonwalkerStageArea(tileset, tilemap, layerA, layerB, meta.getStageWidthInTiles(stageIndex));
 	}
 	protected static byte[] loadTilemap(PackableArrayWrapper src, int srcAddr)
@@ -91,7 +111,8 @@ class MoonwalkerStageIO
 		
 		return layerBDest.pack();
 	}
-	protected static byte[] loadTileset(PackableArrayWrapper src, int stageIndex, MoonwalkerMetadata meta)
+	protected static MoonwalkerTileset loadTileset(PackableArrayWrapper src, int stageIndex, MoonwalkerMetadata meta,
+			TilesetCache cache)
 	{
 		int tiledataIndex = stageIndex / 3;
 		if (tiledataIndex < 5)
@@ -99,12 +120,14 @@ class MoonwalkerStageIO
 			int tiledataArrayAddr = src.getInt(meta.getTilesetTableAddress()
 					+ (4 * tiledataIndex));
 //			int tiledataArrayAddr = src.getInt(0x7C0 + (4 * tiledataIndex)); //REV01
-			return decompressPatterns(src, tiledataArrayAddr);
+			if (cache == null)
+				return new MoonwalkerTileset(decompressPatterns(src, tiledataArrayAddr));
+			return cache.get(src, tiledataArrayAddr);
 		}
 		else
 		{
 			//TODO implement cave tilesets
-			return new byte[0x1000];
+			return BLANK_TILESET;
 		}
 	}
 	public static MoonwalkerPalette loadPalette(byte[] rom, int stageIndex, MoonwalkerMetadata meta)
@@ -140,6 +163,10 @@ class MoonwalkerStageIO
 		
 		return loadPalette(new ArrayWrapper(rom), stageIndex, meta);
 	}
+	public static MoonwalkerPalette loadPalette(ByteBuffer rom, int stageIndex, MoonwalkerMetadata meta)
+	{
+		return loadPalette(new ArrayWrapper(rom), stageIndex, meta);
+	}
 	protected static MoonwalkerPalette loadPalette(ArrayWrapper src, int stageIndex,
 			MoonwalkerMetadata meta)
 	{
@@ -167,28 +194,8 @@ class MoonwalkerStageIO
 		byte[] pal = new byte[0x80];
 		int addr = src.getInt(meta.getPaletteTableAddress() + (src.getShort(src.getInt(
 				meta.getStageMetadataTableAddress() + (stageIndex << 2))) << 3));
-		System.arraycopy(src.getSource(), addr, pal, 0, pal.length);
-		return (palRow, palCol, transparent, priority, f1, f2, f3) ->
-		{
-			int ind = (palRow * 0x20) + (palCol * 2);
-			byte b1 = pal[ind];
-			byte b2 = pal[ind + 1];
-			
-			int b = (b1 & 0xE) >> 1;
-			int g = (b2 & 0xE0) >> 5;
-			int r = (b2 & 0xE) >> 1;
-			
-			int[] map = {0, 0x34, 0x57, 0x74, 0x90, 0xAC, 0xCE, 0xFF};
-			r = map[r];
-			g = map[g];
-			b = map[b];
-			
-			int col = (r << 16) | (g << 8) | b;
-			if (transparent)
-				return col | ((palCol == 0)?0:0xFF000000);
-			else
-				return col;
-		};
+		src.getBuffer().get(addr, pal);
+		return new MTablePalette(pal);
 	}
 	
 	private static void loadIntermediate(PackableArrayWrapper rom, ArrayWrapper ram, int srcAddr)
@@ -281,7 +288,18 @@ class MoonwalkerStageIO
 		}
 	}
 	//Nemesis compression algorithm - a hybrid of RLE and Huffman
-	private static byte[] decompressPatterns(ArrayWrapper m, int dataAddr)
+	static byte[] decompressPatterns(ArrayWrapper m, int dataAddr)
+	{
+		NemesisCodec.Decoded decoded = NemesisCodec.decompress(m.getBuffer(), dataAddr);
+		m.markAccessed(dataAddr, decoded.getCompressedLength());
+		return decoded.getData();
+	}
+	static byte[] compressPatterns(byte[] patterns, boolean maxCompression)
+	{
+		return NemesisCodec.compress(patterns, maxCompression);
+	}
+	//Literal transcription of the 68000 routine, kept as the reference for decompressPatterns
+	static byte[] decompressPatternsLegacy(ArrayWrapper m, int dataAddr)
 	{
 		int offset;
 		int D3, linearBuffer, D5, D6;
@@ -0,0 +1,517 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//Nemesis compression algorithm - a hybrid of RLE and Huffman
+final class NemesisCodec
+{
+	private NemesisCodec()
+	{}
+	
+	private static final int ESCAPE_PREFIX = 0xFC;
+	private static final int ESCAPE_LENGTH = 6 + 7;
+	
+	//Code space is counted in 8-bit prefixes; 0xFC-0xFF are taken by the inline escape
+	private static final int CODE_SPACE = ESCAPE_PREFIX;
+	private static final int MAX_CODE_LENGTH = 8;
+	private static final int SYMBOL_COUNT = 0x80;
+	private static final int MAX_PASSES = 8;
+	
+	public static Decoded decompress(ByteBuffer src, int dataAddr)
+	{
+		int header = 0xFFFF & src.getShort(dataAddr);
+		boolean xorMode = (header & 0x8000) != 0;
+		int rowCount = 0xFFFF & (header << 3);
+		
+		int dataLength = rowCount * 4;
+		if (dataLength > 0xffff)
+			throw new IllegalArgumentException("Invalid data: length greater than VDP capacity");
+		if (dataLength == 0)
+			throw new IllegalArgumentException("Invalid data: no patterns");
+		
+		//Each entry holds the code length in bits 8-11, the repeat count in bits 4-6 and the color in bits 0-3
+		int[] codeTable = new int[0x100];
+		int addr = dataAddr + 2;
+		int b = 0xFF & src.get(addr++);
+		int color = b;
+		if (b != 0xFF)
+		{
+			b = 0xFF & src.get(addr++);
+			for (;;)
+			{
+				while (b > 0x7F)
+				{
+					if (b == 0xFF)
+						break;
+					color = b;
+					b = 0xFF & src.get(addr++);
+				}
+				if (b == 0xFF)
+					break;
+				
+				int codeLength = b & 0xF;
+				if (codeLength > 8)
+					throw new IllegalArgumentException("Invalid data: code length " + codeLength);
+				int entry = (codeLength << 8) | (b & 0x70) | (color & 0xF);
+				int shift = 8 - codeLength;
+				int code = 0xFF & ((0xFF & src.get(addr++)) << shift);
+				for (int i = 0; i < (1 << shift); i++)
+					codeTable[code + i] = entry;
+				
+				b = 0xFF & src.get(addr++);
+			}
+		}
+		int streamAddr = addr;
+		int limit = src.limit();
+		
+		byte[] out = new byte[dataLength];
+		int outAddr = 0;
+		int row = 0;
+		int xorRow = 0;
+		int nibbleCount = 0;
+		
+		//Unread bits are kept left-aligned in bitBuf
+		long bitBuf = 0;
+		int bitCount = 0;
+		long consumedBits = 0;
+		for (;;)
+		{
+			while (bitCount <= 56)
+			{
+				long next = (addr < limit)?(0xFF & src.get(addr)):0;
+				addr++;
+				bitBuf |= next << (56 - bitCount);
+				bitCount += 8;
+			}
+			
+			int codeLength;
+			int entry;
+			if ((int) (bitBuf >>> 56) >= ESCAPE_PREFIX)
+			{
+				codeLength = ESCAPE_LENGTH;
+				entry = (int) (bitBuf >>> (64 - ESCAPE_LENGTH)) & 0x7F;
+			}
+			else
+			{
+				entry = codeTable[(int) (bitBuf >>> 56)];
+				codeLength = entry >> 8;
+			}
+			bitBuf <<= codeLength;
+			bitCount -= codeLength;
+			consumedBits += codeLength;
+			
+			int pixel = entry & 0xF;
+			for (int i = (0x7F & entry) >> 4; i >= 0; i--)
+			{
+				row = (row << 4) | pixel;
+				nibbleCount++;
+				if (nibbleCount == 8)
+				{
+					if (xorMode)
+					{
+						xorRow ^= row;
+						writeInt(out, outAddr, xorRow);
+					}
+					else
+						writeInt(out, outAddr, row);
+					outAddr += 4;
+					if (outAddr == dataLength)
+					{
+						//The 68000 routine keeps at least 9 bits of the stream buffered and reads them all
+						int streamLength = (int) ((consumedBits + 9 + 7) / 8);
+						return new Decoded(out, streamAddr + streamLength - dataAddr);
+					}
+					nibbleCount = 0;
+				}
+			}
+		}
+	}
+	
+	//Fast mode encodes maximal runs in plain mode; maximum compression also tries XOR mode
+	//and alternates between optimal run splitting and rebuilding the code table.
+	public static byte[] compress(byte[] patterns, boolean maxCompression)
+	{
+		if (patterns.length == 0 || patterns.length % 32 != 0)
+			throw new IllegalArgumentException("Invalid data: length is not a positive multiple of 32 ("
+					+ patterns.length + ")");
+		if (patterns.length > 0xffff)
+			throw new IllegalArgumentException("Invalid data: length greater than VDP capacity");
+		
+		Encoding best = encode(toNibbles(patterns, false), false, maxCompression);
+		if (maxCompression)
+		{
+			Encoding xorEncoding = encode(toNibbles(patterns, true), true, true);
+			if (xorEncoding.getSize() < best.getSize())
+				best = xorEncoding;
+		}
+		return best.serialize(patterns.length / 32);
+	}
+	private static Encoding encode(byte[] nibbles, boolean xorMode, boolean optimize)
+	{
+		int[] runs = parseGreedy(nibbles);
+		Encoding best = null;
+		for (int i = 0; i < MAX_PASSES; i++)
+		{
+			Encoding e = new Encoding(xorMode, runs, buildCodeLengths(countSymbols(runs)));
+			if (best != null && e.getSize() >= best.getSize())
+				break;
+			best = e;
+			if (!optimize)
+				break;
+			runs = parseOptimal(nibbles, best.getSymbolCosts());
+		}
+		return best;
+	}
+	private static byte[] toNibbles(byte[] patterns, boolean xorMode)
+	{
+		byte[] ret = new byte[patterns.length * 2];
+		for (int i = 0; i < patterns.length; i++)
+		{
+			int b = patterns[i];
+			if (xorMode && i >= 4)
+				b ^= patterns[i - 4];
+			ret[2 * i] = (byte) ((b >> 4) & 0xF);
+			ret[(2 * i) + 1] = (byte) (b & 0xF);
+		}
+		return ret;
+	}
+	
+	//A symbol is the 7-bit escape value: repeat count - 1 in bits 4-6, color in bits 0-3
+	private static int symbol(int color, int count)
+	{
+		return ((count - 1) << 4) | color;
+	}
+	private static int[] parseGreedy(byte[] nibbles)
+	{
+		int[] runs = new int[nibbles.length];
+		int runCount = 0;
+		for (int i = 0; i < nibbles.length;)
+		{
+			int color = nibbles[i];
+			int count = 1;
+			while (count < 8 && i + count < nibbles.length && nibbles[i + count] == color)
+				count++;
+			runs[runCount++] = symbol(color, count);
+			i += count;
+		}
+		return Arrays.copyOf(runs, runCount);
+	}
+	//Splits every run of equal pixels into pieces with the lowest total cost in bits.
+	//The last run may overshoot the end, since the decoder stops after the last row.
+	private static int[] parseOptimal(byte[] nibbles, int[] symbolCosts)
+	{
+		int l = nibbles.length;
+		int[] sameCount = new int[l + 1];
+		int[] bestCost = new int[l + 1];
+		int[] bestCount = new int[l + 1];
+		for (int i = l - 1; i >= 0; i--)
+		{
+			int color = nibbles[i];
+			sameCount[i] = ((i + 1 < l) && (nibbles[i + 1] == color))?(sameCount[i + 1] + 1):1;
+			
+			int maxCount = Math.min(8, sameCount[i]);
+			if (i + sameCount[i] == l)
+				maxCount = 8;
+			bestCost[i] = Integer.MAX_VALUE;
+			for (int count = 1; count <= maxCount; count++)
+			{
+				int cost = symbolCosts[symbol(color, count)] + bestCost[Math.min(i + count, l)];
+				if (cost < bestCost[i])
+				{
+					bestCost[i] = cost;
+					bestCount[i] = count;
+				}
+			}
+		}
+		
+		int[] runs = new int[l];
+		int runCount = 0;
+		for (int i = 0; i < l; i += bestCount[i])
+			runs[runCount++] = symbol(nibbles[i], bestCount[i]);
+		return Arrays.copyOf(runs, runCount);
+	}
+	private static int[] countSymbols(int[] runs)
+	{
+		int[] ret = new int[SYMBOL_COUNT];
+		for (int sym: runs)
+			ret[sym]++;
+		return ret;
+	}
+	
+	//Chooses code lengths (-1 for symbols left to the inline escape) minimizing the total size.
+	//With frequencies sorted in descending order the optimal lengths are non-decreasing,
+	//so a dynamic program over (symbols coded, code space used, last length) is exact.
+	private static int[] buildCodeLengths(int[] freq)
+	{
+		int[] lengths = new int[SYMBOL_COUNT];
+		Arrays.fill(lengths, -1);
+		
+		Integer[] order = new Integer[SYMBOL_COUNT];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> (freq[b] != freq[a])?(freq[b] - freq[a]):(a - b));
+		int m = 0;
+		while (m < order.length && freq[order[m]] > 0)
+			m++;
+		
+		//A single symbol needs no bits at all: a zero-length code fills the whole table
+		if (m == 1)
+		{
+			lengths[order[0]] = 0;
+			return lengths;
+		}
+		
+		final int inf = Integer.MAX_VALUE / 2;
+		int[][][] cost = new int[m + 1][CODE_SPACE + 1][MAX_CODE_LENGTH + 1];
+		byte[][][] prevLength = new byte[m + 1][CODE_SPACE + 1][MAX_CODE_LENGTH + 1];
+		for (int[][] arr: cost)
+			for (int[] arr0: arr)
+				Arrays.fill(arr0, inf);
+		cost[0][0][1] = 0;
+		for (int i = 0; i < m; i++)
+		{
+			int f = freq[order[i]];
+			for (int used = 0; used <= CODE_SPACE; used++)
+			{
+				for (int last = 1; last <= MAX_CODE_LENGTH; last++)
+				{
+					int curr = cost[i][used][last];
+					if (curr == inf)
+						continue;
+					for (int len = last; len <= MAX_CODE_LENGTH; len++)
+					{
+						int newUsed = used + (1 << (MAX_CODE_LENGTH - len));
+						if (newUsed > CODE_SPACE)
+							continue;
+						int newCost = curr + (f * len);
+						if (newCost < cost[i + 1][newUsed][len])
+						{
+							cost[i + 1][newUsed][len] = newCost;
+							prevLength[i + 1][newUsed][len] = (byte) last;
+						}
+					}
+				}
+			}
+		}
+		
+		int bestCoded = 0;
+		int bestUsed = 0;
+		int bestLast = 1;
+		long bestTotal = Long.MAX_VALUE;
+		long escapedBits = 0;
+		for (int i = 0; i < m; i++)
+			escapedBits += (long) ESCAPE_LENGTH * freq[order[i]];
+		boolean[] colorUsed = new boolean[16];
+		int colorCount = 0;
+		for (int coded = 0; coded <= m; coded++)
+		{
+			if (coded > 0)
+			{
+				int sym = order[coded - 1];
+				escapedBits -= (long) ESCAPE_LENGTH * freq[sym];
+				if (!colorUsed[sym & 0xF])
+				{
+					colorUsed[sym & 0xF] = true;
+					colorCount++;
+				}
+			}
+			long tableBits = 8L * (colorCount + (2 * coded));
+			for (int used = 0; used <= CODE_SPACE; used++)
+			{
+				for (int last = 1; last <= MAX_CODE_LENGTH; last++)
+				{
+					if (cost[coded][used][last] == inf)
+						continue;
+					long total = cost[coded][used][last] + escapedBits + tableBits;
+					if (total < bestTotal)
+					{
+						bestTotal = total;
+						bestCoded = coded;
+						bestUsed = used;
+						bestLast = last;
+					}
+				}
+			}
+		}
+		
+		for (int i = bestCoded; i > 0; i--)
+		{
+			lengths[order[i - 1]] = bestLast;
+			int prev = prevLength[i][bestUsed][bestLast];
+			bestUsed -= 1 << (MAX_CODE_LENGTH - bestLast);
+			bestLast = prev;
+		}
+		return lengths;
+	}
+	
+	private static void writeInt(byte[] dest, int addr, int val)
+	{
+		dest[addr] = (byte) (val >> 24);
+		dest[addr + 1] = (byte) (val >> 16);
+		dest[addr + 2] = (byte) (val >> 8);
+		dest[addr + 3] = (byte) val;
+	}
+	
+	static class Decoded
+	{
+		private final byte[] data;
+		private final int compressedLength;
+		
+		private Decoded(byte[] data, int compressedLength)
+		{
+			this.data = data;
+			this.compressedLength = compressedLength;
+		}
+		
+		public byte[] getData()
+		{
+			return data;
+		}
+		//Number of source bytes read by the decoder, header and code table included
+		public int getCompressedLength()
+		{
+			return compressedLength;
+		}
+	}
+	
+	private static class Encoding
+	{
+		private final boolean xorMode;
+		private final int[] runs;
+		private final int[] codeLengths;
+		private final int[] codes;
+		private final int tableLength;
+		private final long streamBits;
+		
+		public Encoding(boolean xorMode, int[] runs, int[] codeLengths)
+		{
+			this.xorMode = xorMode;
+			this.runs = runs;
+			this.codeLengths = codeLengths;
+			
+			//Canonical codes, shortest first, starting from prefix 0x00
+			codes = new int[SYMBOL_COUNT];
+			Integer[] order = new Integer[SYMBOL_COUNT];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> (codeLengths[a] != codeLengths[b])
+					?(codeLengths[a] - codeLengths[b]):(a - b));
+			int code = 0;
+			int prevLength = -1;
+			boolean[] colorUsed = new boolean[16];
+			int length = 1;
+			for (int sym: order)
+			{
+				int len = codeLengths[sym];
+				if (len < 0)
+					continue;
+				if (prevLength >= 0)
+					code = (code + 1) << (len - prevLength);
+				codes[sym] = code;
+				prevLength = len;
+				
+				if (!colorUsed[sym & 0xF])
+				{
+					colorUsed[sym & 0xF] = true;
+					length++;
+				}
+				length += 2;
+			}
+			tableLength = length;
+			
+			long bits = 0;
+			for (int sym: runs)
+				bits += (codeLengths[sym] < 0)?ESCAPE_LENGTH:codeLengths[sym];
+			streamBits = bits;
+		}
+		
+		public int[] getSymbolCosts()
+		{
+			int[] ret = new int[SYMBOL_COUNT];
+			for (int i = 0; i < ret.length; i++)
+				ret[i] = (codeLengths[i] < 0)?ESCAPE_LENGTH:codeLengths[i];
+			return ret;
+		}
+		//The stream is padded to what the decoder reads ahead, so the blob covers its tracked range
+		private int getStreamLength()
+		{
+			return (int) ((streamBits + 9 + 7) / 8);
+		}
+		public int getSize()
+		{
+			return 2 + tableLength + getStreamLength();
+		}
+		
+		public byte[] serialize(int patternCount)
+		{
+			byte[] ret = new byte[getSize()];
+			int header = patternCount | (xorMode?0x8000:0);
+			ret[0] = (byte) (header >> 8);
+			ret[1] = (byte) header;
+			
+			int addr = 2;
+			for (int color = 0; color < 16; color++)
+			{
+				boolean colorWritten = false;
+				for (int count = 1; count <= 8; count++)
+				{
+					int sym = symbol(color, count);
+					int len = codeLengths[sym];
+					if (len < 0)
+						continue;
+					if (!colorWritten)
+					{
+						ret[addr++] = (byte) (0x80 | color);
+						colorWritten = true;
+					}
+					ret[addr++] = (byte) (((count - 1) << 4) | len);
+					ret[addr++] = (byte) codes[sym];
+				}
+			}
+			ret[addr++] = (byte) 0xFF;
+			
+			long bitBuf = 0;
+			int bitCount = 0;
+			for (int sym: runs)
+			{
+				int len = codeLengths[sym];
+				if (len < 0)
+				{
+					bitBuf = (bitBuf << ESCAPE_LENGTH) | (0x3F << 7) | sym;
+					bitCount += ESCAPE_LENGTH;
+				}
+				else
+				{
+					bitBuf = (bitBuf << len) | codes[sym];
+					bitCount += len;
+				}
+				while (bitCount >= 8)
+				{
+					bitCount -= 8;
+					ret[addr++] = (byte) (bitBuf >> bitCount);
+				}
+			}
+			if (bitCount > 0)
+				ret[addr] = (byte) (bitBuf << (8 - bitCount));
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+//Copy-on-write view of a ROM. Writes go to private copies of the touched pages and only reach
+//the ROM on commit(), so an aborted write is dropped by discard() without copying the whole
+//ROM. Not thread-safe.
+class OverlayArrayWrapper extends ArrayWrapper
+{
+	public static final int PAGE_SHIFT = 12;
+	public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	
+	private final ByteBuffer base;
+	private final int length;
+	private final byte[][] pages;
+	private int dirtyPageCount = 0;
+	//Base contents with the dirty pages applied, built for bulk readers and dropped on write
+	private ByteBuffer mergedView;
+	
+	public OverlayArrayWrapper(byte[] base)
+	{
+		super(base);
+		this.base = super.getBuffer();
+		length = this.base.capacity();
+		pages = new byte[(length + PAGE_MASK) >> PAGE_SHIFT][];
+	}
+	//Addresses are relative to the buffer's current position; commit() writes into the buffer
+	public OverlayArrayWrapper(ByteBuffer base)
+	{
+		super(base);
+		this.base = super.getBuffer();
+		length = this.base.capacity();
+		pages = new byte[(length + PAGE_MASK) >> PAGE_SHIFT][];
+	}
+	
+	public byte[] getBlock(int ind, int len)
+	{
+		Objects.checkFromIndexSize(ind, len, length);
+		byte[] ret = new byte[len];
+		int off = 0;
+		while (off < len)
+		{
+			int addr = ind + off;
+			int chunk = Math.min(len - off, PAGE_SIZE - (addr & PAGE_MASK));
+			byte[] page = pages[addr >> PAGE_SHIFT];
+			if (page == null)
+				base.get(addr, ret, off, chunk);
+			else
+				System.arraycopy(page, addr & PAGE_MASK, ret, off, chunk);
+			off += chunk;
+		}
+		return ret;
+	}
+	public byte getByte(int ind)
+	{
+		Objects.checkIndex(ind, length);
+		byte[] page = pages[ind >> PAGE_SHIFT];
+		return (page == null) ? base.get(ind) : page[ind & PAGE_MASK];
+	}
+	public short getShort(int ind)
+	{
+		Objects.checkFromIndexSize(ind, 2, length);
+		return (short) (((0xFF & getByte(ind)) << 8) | (0xFF & getByte(ind + 1)));
+	}
+	public int getInt(int ind)
+	{
+		Objects.checkFromIndexSize(ind, 4, length);
+		return ((0xFF & getByte(ind)) << 24) | ((0xFF & getByte(ind + 1)) << 16)
+				| ((0xFF & getByte(ind + 2)) << 8) | (0xFF & getByte(ind + 3));
+	}
+	
+	public void put(int ind, byte[] arr)
+	{
+		put(ind, arr, 0, arr.length);
+	}
+	public void put(int ind, byte[] arr, int off, int len)
+	{
+		Objects.checkFromIndexSize(off, len, arr.length);
+		Objects.checkFromIndexSize(ind, len, length);
+		int done = 0;
+		while (done < len)
+		{
+			int addr = ind + done;
+			int chunk = Math.min(len - done, PAGE_SIZE - (addr & PAGE_MASK));
+			System.arraycopy(arr, off + done, getWritablePage(addr), addr & PAGE_MASK, chunk);
+			done += chunk;
+		}
+	}
+	public void putByte(int ind, byte val)
+	{
+		Objects.checkIndex(ind, length);
+		getWritablePage(ind)[ind & PAGE_MASK] = val;
+	}
+	public void putShort(int ind, short val)
+	{
+		Objects.checkFromIndexSize(ind, 2, length);
+		putByte(ind, (byte) (val >> 8));
+		putByte(ind + 1, (byte) val);
+	}
+	public void putInt(int ind, int val)
+	{
+		Objects.checkFromIndexSize(ind, 4, length);
+		putByte(ind, (byte) (val >> 24));
+		putByte(ind + 1, (byte) (val >> 16));
+		putByte(ind + 2, (byte) (val >> 8));
+		putByte(ind + 3, (byte) val);
+	}
+	
+	//The base array does not reflect pending writes
+	public byte[] getSource()
+	{
+		if (dirtyPageCount > 0)
+			throw new IllegalStateException("Overlay has uncommitted writes");
+		return super.getSource();
+	}
+	//Pending writes make the overlay's contents differ from the base ROM, so caches keyed by
+	//identity must not share entries between the two
+	Object getIdentity()
+	{
+		return this;
+	}
+	int getIdentityOffset()
+	{
+		return 0;
+	}
+	//Without pending writes this is the base ROM itself; otherwise the merged contents are
+	//copied once and reused until the next write
+	ByteBuffer getBuffer()
+	{
+		if (dirtyPageCount == 0)
+			return base.asReadOnlyBuffer();
+		if (mergedView == null)
+		{
+			byte[] merged = new byte[length];
+			base.get(0, merged);
+			for (int i = 0; i < pages.length; i++)
+			{
+				if (pages[i] != null)
+				{
+					int start = i << PAGE_SHIFT;
+					System.arraycopy(pages[i], 0, merged, start, Math.min(PAGE_SIZE, length - start));
+				}
+			}
+			mergedView = ByteBuffer.wrap(merged).asReadOnlyBuffer();
+		}
+		return mergedView;
+	}
+	
+	//Pages written since the last commit() or discard()
+	public IntRangeSet getDirtyPages()
+	{
+		IntRangeSet.Builder b = new IntRangeSet.Builder();
+		for (int i = 0; i < pages.length; i++)
+		{
+			if (pages[i] != null)
+				b.add(i << PAGE_SHIFT, Math.min((i + 1) << PAGE_SHIFT, length));
+		}
+		return b.build();
+	}
+	//Bytes of the written pages that differ from the base ROM
+	IntRangeSet getChangedRanges()
+	{
+		IntRangeSet.Builder b = new IntRangeSet.Builder();
+		byte[] basePage = new byte[PAGE_SIZE];
+		for (int i = 0; i < pages.length; i++)
+		{
+			byte[] page = pages[i];
+			if (page == null)
+				continue;
+			int start = i << PAGE_SHIFT;
+			int len = Math.min(PAGE_SIZE, length - start);
+			base.get(start, basePage, 0, len);
+			int j = 0;
+			while (j < len)
+			{
+				int mismatch = Arrays.mismatch(page, j, len, basePage, j, len);
+				if (mismatch < 0)
+					break;
+				int runStart = j + mismatch;
+				int runEnd = runStart + 1;
+				while (runEnd < len && page[runEnd] != basePage[runEnd])
+					runEnd++;
+				b.add(start + runStart, start + runEnd);
+				j = runEnd;
+			}
+		}
+		return b.build();
+	}
+	//Copies the written pages into the base ROM
+	public void commit()
+	{
+		for (int i = 0; i < pages.length; i++)
+		{
+			byte[] page = pages[i];
+			if (page != null)
+			{
+				int start = i << PAGE_SHIFT;
+				base.put(start, page, 0, Math.min(PAGE_SIZE, length - start));
+			}
+		}
+		discard();
+	}
+	public void discard()
+	{
+		Arrays.fill(pages, null);
+		dirtyPageCount = 0;
+		mergedView = null;
+	}
+	
+	private byte[] getWritablePage(int addr)
+	{
+		mergedView = null;
+		int i = addr >> PAGE_SHIFT;
+		byte[] page = pages[i];
+		if (page == null)
+		{
+			int start = i << PAGE_SHIFT;
+			page = new byte[PAGE_SIZE];
+			base.get(start, page, 0, Math.min(PAGE_SIZE, length - start));
+			pages[i] = page;
+			dirtyPageCount++;
+		}
+		return page;
+	}
+}
@@ -17,17 +17,21 @@
 
 package moonwalker.core.utils;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
+//Not thread-safe: every access updates the highest accessed address
 class PackableArrayWrapper extends ArrayWrapper
 {
-	private byte[] src;
 	private int maxAddr;
 	
 	public PackableArrayWrapper(byte[] src)
 	{
 		super(src);
-		this.src = src;
+		maxAddr = 0;
+	}
+	public PackableArrayWrapper(ByteBuffer src)
+	{
+		super(src);
 		maxAddr = 0;
 	}
 	
@@ -62,6 +66,12 @@ class PackableArrayWrapper extends ArrayWrapper
 			maxAddr = ind + arr.length - 1;
 		super.put(ind, arr);
 	}
+	public void put(int ind, byte[] arr, int off, int len)
+	{
+		if (ind + len - 1 > maxAddr)
+			maxAddr = ind + len - 1;
+		super.put(ind, arr, off, len);
+	}
 	public void putByte(int ind, byte val)
 	{
 		if (ind > maxAddr)
@@ -81,8 +91,17 @@ class PackableArrayWrapper extends ArrayWrapper
 		super.putInt(ind, val);
 	}
 	
+	void markAccessed(int ind, int len)
+	{
+		if (ind + len - 1 > maxAddr)
+			maxAddr = ind + len - 1;
+		super.markAccessed(ind, len);
+	}
+	
 	public byte[] pack()
 	{
-		return Arrays.copyOfRange(src, 0, maxAddr + 1);
+		byte[] ret = new byte[maxAddr + 1];
+		getBuffer().get(0, ret);
+		return ret;
 	}
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ package moonwalker.core.utils;
 
 import java.awt.Dimension;
 import java.awt.Point;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -98,12 +99,12 @@ public class REV00Metadata implements MoonwalkerMetadata
 		0x28
 	};
 	
-	private void initROMSpace(byte[] romContent, IntRange[] suspectedFreeSpace)
+	private void initROMSpace(ByteBuffer romContent, IntRange[] suspectedFreeSpace)
 	{
 		final int margin = 16;
 		
-		ArrayList<IntRange> freeSpaceList = new ArrayList<>();
-		ArrayList<IntRange> unassignedSpaceList = new ArrayList<>();
+		IntRangeSet.Builder freeSpaceList = new IntRangeSet.Builder();
+		IntRangeSet.Builder unassignedSpaceList = new IntRangeSet.Builder();
 //		ArrayList<Range> marginSpaceList = new ArrayList<>();
 		
 		//TODO Test
@@ -118,14 +119,14 @@ public class REV00Metadata implements MoonwalkerMetadata
 			
 			for (int curr = start; curr < end; curr++)
 			{
-				if ((0xFF & romContent[curr]) != 0xFF)
+				if ((0xFF & romContent.get(curr)) != 0xFF)
 				{
 					if (inFreeSpace)
 					{
 						inFreeSpace = false;
-						freeSpaceList.add(new IntRange(
+						freeSpaceList.add(
 								spaceStart,
-								Math.max(curr - margin, spaceStart)));
+								Math.max(curr - margin, spaceStart));
 						spaceStart = curr;
 					}
 					else
@@ -140,9 +141,9 @@ public class REV00Metadata implements MoonwalkerMetadata
 						{
 							inFreeSpace = true;
 							ffCount = 0;
-							unassignedSpaceList.add(new IntRange(
+							unassignedSpaceList.add(
 									Math.max(spaceStart - margin, start),
-									Math.min(curr, end)));
+									Math.min(curr, end));
 							spaceStart = curr;
 						}
 					}
@@ -151,15 +152,15 @@ public class REV00Metadata implements MoonwalkerMetadata
 			
 			if (inFreeSpace)
 			{
-				freeSpaceList.add(new IntRange(
+				freeSpaceList.add(
 						spaceStart,
-						end));
+						end);
 			}
 			else
 			{
-				unassignedSpaceList.add(new IntRange(
+				unassignedSpaceList.add(
 						Math.max(spaceStart - margin, start),
-						end));
+						end);
 			}
 		}
 		
@@ -195,8 +196,8 @@ public class REV00Metadata implements MoonwalkerMetadata
 //			marginSpaceList.add(new Range(rightMarginStart, end));
 //		}
 		
-		freeSpace = new IntRangeSet(freeSpaceList);
-		unassignedSpace = new IntRangeSet(unassignedSpaceList);
+		freeSpace = freeSpaceList.build();
+		unassignedSpace = unassignedSpaceList.build();
 		usedSpace = new HashMap<>();
 //		marginSpace = new RangeSet(marginSpaceList);
 		
@@ -312,14 +313,22 @@ public class REV00Metadata implements MoonwalkerMetadata
 	
 	public REV00Metadata(byte[] romContent)
 	{
+		this(ByteBuffer.wrap(romContent));
+	}
+	//The ROM spans the buffer's remaining bytes; the buffer itself is not modified
+	public REV00Metadata(ByteBuffer romContent)
+	{
+		romContent = romContent.slice();
 		ArrayList<Integer> allowedRomLengths = new ArrayList<Integer>(
 				Arrays.asList(new Integer[] {0x80000, 0x100000, 0x200000, 0x400000}));
-		if (!allowedRomLengths.contains(romContent.length))
+		if (!allowedRomLengths.contains(romContent.capacity()))
 			throw new IllegalArgumentException("Invalid ROM length: 0x"
-					+ Integer.toHexString(romContent.length) + " b");
+					+ Integer.toHexString(romContent.capacity()) + " b");
 		
+		byte[] header = new byte[0x0E];
+		romContent.get(0x180, header);
 		if (!Arrays.equals(
-				Arrays.copyOfRange(romContent, 0x180, 0x18E),
+				header,
 				new byte[] 
 				{
 					0x47, 0x4D, 0x20, 0x30, 0x30, 0x30, 0x30,
@@ -327,7 +336,7 @@ public class REV00Metadata implements MoonwalkerMetadata
 				}))
 			throw new IllegalArgumentException("Invalid ROM header for REV00");
 		
-		romLength = romContent.length;
+		romLength = romContent.capacity();
 		
 		IntRange[] suspectedFreeSpace =
 		{
@@ -344,7 +353,7 @@ public class REV00Metadata implements MoonwalkerMetadata
 			new IntRange(0x5F740, 0x60000),
 			new IntRange(0x68720, 0x68800),
 			new IntRange(0x6F490, 0x70000),
-			new IntRange(0x7FFF0, romContent.length)
+			new IntRange(0x7FFF0, romLength)
 		};
 		
 		initROMSpace(romContent, suspectedFreeSpace);
@@ -369,6 +378,10 @@ public class REV00Metadata implements MoonwalkerMetadata
 		String qualifiedKey = getQualifiedKey(cl, usecase);
 		return freeSpace.union(usedSpace.getOrDefault(qualifiedKey, IntRangeSet.EMPTY));
 	}
+	public IntRangeSet getUsedROMSpace(Class<?> cl, String usecase)
+	{
+		return usedSpace.getOrDefault(getQualifiedKey(cl, usecase), IntRangeSet.EMPTY);
+	}
 	public void assignROMSpace(Class<?> cl, String usecase, IntRangeSet consumedSpace)
 	{
 		String qualifiedKey = getQualifiedKey(cl, usecase);
@@ -392,13 +405,16 @@ public class REV00Metadata implements MoonwalkerMetadata
 		clearROM(rom, freedSpace);
 	}
 	public void clearAllROMSpace(Class<?> cl, String usecase, byte[] rom)
+	{
+		clearROM(rom, releaseAllROMSpace(cl, usecase));
+	}
+	public IntRangeSet releaseAllROMSpace(Class<?> cl, String usecase)
 	{
 		String qualifiedKey = getQualifiedKey(cl, usecase);
 		IntRangeSet currUsedSpace = usedSpace.getOrDefault(qualifiedKey, IntRangeSet.EMPTY);
 		usedSpace.put(qualifiedKey, IntRangeSet.EMPTY);
 		freeSpace = freeSpace.union(currUsedSpace);
-		
-		clearROM(rom, currUsedSpace);
+		return currUsedSpace;
 	}
 	private void clearROM(byte[] rom, IntRangeSet rs)
 	{
@@ -0,0 +1,140 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+//Best-fit allocator over a set of free ROM ranges. Free blocks are indexed both by size
+//(for allocation) and by start address (for coalescing on free), so both are O(log n).
+//Addresses handed out are multiples of the alignment; the 68000 faults on word and long
+//accesses at odd addresses.
+class RomSpaceAllocator
+{
+	private final IntRangeSet initialSpace;
+	private final int alignment;
+	//size << 32 | start, so the ceiling of (size << 32) is the smallest block that fits
+	private final TreeSet<Long> blocksBySize;
+	private final TreeMap<Integer, Integer> blocksByStart;
+	
+	public RomSpaceAllocator(IntRangeSet freeSpace)
+	{
+		this(freeSpace, 2);
+	}
+	public RomSpaceAllocator(IntRangeSet freeSpace, int alignment)
+	{
+		if ((alignment <= 0) || ((alignment & (alignment - 1)) != 0))
+			throw new IllegalArgumentException("Alignment must be a power of 2: " + alignment);
+		initialSpace = freeSpace;
+		this.alignment = alignment;
+		blocksBySize = new TreeSet<>();
+		blocksByStart = new TreeMap<>();
+		for (IntRange r: freeSpace.getRangeArray())
+			addBlock(r.getStart(), r.getEnd());
+	}
+	
+	public int allocate(int size) throws OutOfSpaceException
+	{
+		int addr = tryAllocate(size);
+		if (addr < 0)
+			throw new OutOfSpaceException("Not enough space for all data. Try removing some objects.");
+		return addr;
+	}
+	//Returns the allocated address, or -1 if no free block can hold the data
+	public int tryAllocate(int size)
+	{
+		if (size <= 0)
+			throw new IllegalArgumentException("size <= 0");
+		
+		//Blocks at least size + alignment - 1 long always fit, so only a few smaller
+		//candidates with an unaligned start can be skipped before one is found
+		Long key = blocksBySize.ceiling(((long) size) << 32);
+		while (key != null)
+		{
+			int start = (int) (long) key;
+			int end = start + (int) (key >>> 32);
+			int alignedStart = align(start);
+			if (alignedStart + size <= end)
+			{
+				removeBlock(start, end);
+				addBlock(start, alignedStart);
+				addBlock(alignedStart + size, end);
+				return alignedStart;
+			}
+			key = blocksBySize.higher(key);
+		}
+		return -1;
+	}
+	public void free(int start, int end)
+	{
+		if (end < start)
+			throw new IllegalArgumentException("Illegal range: End < Start");
+		if (start == end)
+			return;
+		
+		Map.Entry<Integer, Integer> prev = blocksByStart.floorEntry(start);
+		if ((prev != null) && (prev.getValue() > start))
+			throw new IllegalArgumentException("Range is already free: [" + start + ", " + end + "]");
+		Map.Entry<Integer, Integer> next = blocksByStart.ceilingEntry(start);
+		if ((next != null) && (next.getKey() < end))
+			throw new IllegalArgumentException("Range is already free: [" + start + ", " + end + "]");
+		
+		if ((prev != null) && (prev.getValue() == start))
+		{
+			removeBlock(prev.getKey(), prev.getValue());
+			start = prev.getKey();
+		}
+		if ((next != null) && (next.getKey() == end))
+		{
+			removeBlock(next.getKey(), next.getValue());
+			end = next.getValue();
+		}
+		addBlock(start, end);
+	}
+	
+	public IntRangeSet getFreeSpace()
+	{
+		IntRangeSet.Builder b = new IntRangeSet.Builder(blocksByStart.size());
+		for (Map.Entry<Integer, Integer> e: blocksByStart.entrySet())
+			b.add(e.getKey(), e.getValue());
+		return b.build();
+	}
+	//Space taken out of the initial free set by allocations, excluding alignment padding
+	public IntRangeSet getAllocatedSpace()
+	{
+		return initialSpace.difference(getFreeSpace());
+	}
+	
+	private int align(int addr)
+	{
+		return (addr + alignment - 1) & -alignment;
+	}
+	private void addBlock(int start, int end)
+	{
+		if (start == end)
+			return;
+		blocksBySize.add((((long) (end - start)) << 32) | start);
+		blocksByStart.put(start, end);
+	}
+	private void removeBlock(int start, int end)
+	{
+		blocksBySize.remove((((long) (end - start)) << 32) | start);
+		blocksByStart.remove(start);
+	}
+}
@@ -17,64 +17,83 @@
 
 package moonwalker.core.utils;
 
+import java.nio.ByteBuffer;
+
+//Not thread-safe: every access updates the recorded ranges
 public class TPArrayWrapper extends PackableArrayWrapper
 {
-private IntRangeSet rs;
+	private IntRangeSet.Builder tracker;
 	
 	public TPArrayWrapper(byte[] src)
 	{
 		super(src);
-		rs = IntRangeSet.EMPTY;
+		tracker = new IntRangeSet.Builder();
+	}
+	public TPArrayWrapper(ByteBuffer src)
+	{
+		super(src);
+		tracker = new IntRangeSet.Builder();
 	}
 	
 	public byte[] getBlock(int ind, int len)
 	{
-		rs = rs.union(new IntRangeSet(ind, ind + len));
+		tracker.add(ind, ind + len);
 		return super.getBlock(ind, len);
 	}
 	public byte getByte(int ind)
 	{
-		rs = rs.union(new IntRangeSet(ind, ind + 1));
+		tracker.add(ind, ind + 1);
 		return super.getByte(ind);
 	}
 	public short getShort(int ind)
 	{
-		rs = rs.union(new IntRangeSet(ind, ind + 2));
+		tracker.add(ind, ind + 2);
 		return super.getShort(ind);
 	}
 	public int getInt(int ind)
 	{
-		rs = rs.union(new IntRangeSet(ind, ind + 4));
+		tracker.add(ind, ind + 4);
 		return super.getInt(ind);
 	}
 	
 	public void put(int ind, byte[] arr)
 	{
-		rs = rs.union(new IntRangeSet(ind, ind + arr.length));
+		tracker.add(ind, ind + arr.length);
 		super.put(ind, arr);
 	}
+	public void put(int ind, byte[] arr, int off, int len)
+	{
+		tracker.add(ind, ind + len);
+		super.put(ind, arr, off, len);
+	}
 	public void putByte(int ind, byte val)
 	{
-		rs = rs.union(new IntRangeSet(ind, ind + 1));
+		tracker.add(ind, ind + 1);
 		super.putByte(ind, val);
 	}
 	public void putShort(int ind, short val)
 	{
-		rs = rs.union(new IntRangeSet(ind, ind + 2));
+		tracker.add(ind, ind + 2);
 		super.putShort(ind, val);
 	}
 	public void putInt(int ind, int val)
 	{
-		rs = rs.union(new IntRangeSet(ind, ind + 4));
+		tracker.add(ind, ind + 4);
 		super.putInt(ind, val);
 	}
 	
+	void markAccessed(int ind, int len)
+	{
+		tracker.add(ind, ind + len);
+		super.markAccessed(ind, len);
+	}
+	
 	public byte[] getSource()
 	{
 		return super.getSource();
 	}
 	public IntRangeSet getRangeSet()
 	{
-		return rs;
+		return tracker.build();
 	}
 }
@@ -0,0 +1,240 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.core.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import moonwalker.core.structures.MoonwalkerTileset;
+
+//Decoded tilesets shared by the stage areas loaded with the same cache, keyed by the ROM's
+//storage and the tileset's absolute address in it, so views of one ROM at different offsets
+//share entries. ROMs are held weakly; least recently used tilesets are evicted once the
+//capacity is exceeded. Entries are not updated when the ROM changes: whoever writes to a
+//ROM loaded through a cache has to invalidate the written range, which EditJournal does for
+//its own edits. Concurrent requests for a tileset that is still being decoded wait for that
+//decode instead of starting their own.
+public final class TilesetCache
+{
+	public static final int DEFAULT_CAPACITY = 32;
+	
+	private int capacity;
+	private long decodeCount = 0;
+	//Bumped by every invalidation so that decodes started before it are not cached
+	private long generation = 0;
+	private final ReferenceQueue<Object> staleRoms = new ReferenceQueue<>();
+	private final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+		{
+			return size() > capacity;
+		}
+	};
+	private final HashMap<Key, CompletableFuture<Entry>> pending = new HashMap<>();
+	
+	public TilesetCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+	public TilesetCache(int capacity)
+	{
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity < 0");
+		this.capacity = capacity;
+	}
+	
+	MoonwalkerTileset get(ArrayWrapper src, int addr)
+	{
+		Key key = new Key(src.getIdentity(), src.getIdentityOffset() + addr, null);
+		Entry entry;
+		CompletableFuture<Entry> decode = null;
+		boolean decoding = false;
+		long startGeneration;
+		synchronized (this)
+		{
+			expungeStaleEntries();
+			startGeneration = generation;
+			entry = cache.get(key);
+			if (entry == null)
+			{
+				decode = pending.get(key);
+				if (decode == null)
+				{
+					decode = new CompletableFuture<>();
+					pending.put(key, decode);
+					decoding = true;
+				}
+			}
+		}
+		if (decoding)
+		{
+			try
+			{
+				NemesisCodec.Decoded decoded = NemesisCodec.decompress(src.getBuffer(), addr);
+				entry = new Entry(new MoonwalkerTileset(decoded.getData()), decoded.getCompressedLength());
+			}
+			catch (RuntimeException | Error e)
+			{
+				synchronized (this)
+				{
+					pending.remove(key);
+				}
+				decode.completeExceptionally(e);
+				throw e;
+			}
+			synchronized (this)
+			{
+				decodeCount++;
+				pending.remove(key);
+				if (capacity > 0 && generation == startGeneration)
+					cache.put(new Key(src.getIdentity(), src.getIdentityOffset() + addr, staleRoms), entry);
+			}
+			decode.complete(entry);
+		}
+		else if (entry == null)
+		{
+			try
+			{
+				entry = decode.join();
+			}
+			catch (CompletionException e)
+			{
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw e;
+			}
+		}
+		src.markAccessed(addr, entry.compressedLength);
+		return entry.tileset;
+	}
+	
+	public synchronized void setCapacity(int capacity)
+	{
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity < 0");
+		this.capacity = capacity;
+		while (cache.size() > capacity)
+			cache.remove(cache.keySet().iterator().next());
+	}
+	public synchronized int getCapacity()
+	{
+		return capacity;
+	}
+	public synchronized int size()
+	{
+		expungeStaleEntries();
+		return cache.size();
+	}
+	//Number of Nemesis blobs actually decoded, cache misses included
+	public synchronized long getDecodeCount()
+	{
+		return decodeCount;
+	}
+	//Drops every tileset of the ROM, given as the byte[] or ByteBuffer it was loaded from
+	public synchronized void invalidate(Object rom)
+	{
+		Object identity = ArrayWrapper.identityOf(rom);
+		cache.keySet().removeIf(k -> k.get() == identity);
+		generation++;
+	}
+	//Drops the tilesets whose compressed data overlaps [start, end) of the ROM
+	public void invalidate(byte[] rom, int start, int end)
+	{
+		invalidate(new ArrayWrapper(rom), start, end);
+	}
+	public void invalidate(ByteBuffer rom, int start, int end)
+	{
+		invalidate(new ArrayWrapper(rom), start, end);
+	}
+	synchronized void invalidate(ArrayWrapper rom, int start, int end)
+	{
+		Object identity = rom.getIdentity();
+		int absStart = rom.getIdentityOffset() + start;
+		int absEnd = rom.getIdentityOffset() + end;
+		cache.entrySet().removeIf(e -> e.getKey().get() == identity
+				&& e.getKey().addr < absEnd && absStart < e.getKey().addr + e.getValue().compressedLength);
+		generation++;
+	}
+	public synchronized void clear()
+	{
+		cache.clear();
+		generation++;
+	}
+	
+	private void expungeStaleEntries()
+	{
+		Object ref;
+		while ((ref = staleRoms.poll()) != null)
+			cache.remove(ref);
+	}
+	
+	private static class Key extends WeakReference<Object>
+	{
+		private final int romHash;
+		private final int addr;
+		
+		public Key(Object rom, int addr, ReferenceQueue<Object> queue)
+		{
+			super(rom, queue);
+			romHash = System.identityHashCode(rom);
+			this.addr = addr;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			Key other = (Key) obj;
+			if (addr != other.addr)
+				return false;
+			Object rom = get();
+			return rom != null && rom == other.get();
+		}
+		@Override
+		public int hashCode()
+		{
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + addr;
+			result = prime * result + romHash;
+			return result;
+		}
+	}
+	private static class Entry
+	{
+		private final MoonwalkerTileset tileset;
+		private final int compressedLength;
+		
+		public Entry(MoonwalkerTileset tileset, int compressedLength)
+		{
+			this.tileset = tileset;
+			this.compressedLength = compressedLength;
+		}
+	}
+}